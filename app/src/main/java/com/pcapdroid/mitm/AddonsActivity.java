@@ -42,17 +42,10 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
 import java.util.Set;
 
 public class AddonsActivity extends Activity implements AddonsAdapter.AddonListener {
@@ -158,61 +151,15 @@ public class AddonsActivity extends Activity implements AddonsAdapter.AddonListe
         return rv;
     }
 
-    /* Since we can only access the addons dir via the ContentResolver, we copy all the addons
-     * to the app private dir to make python import work. */
+    /* Since we can only access the addons dir via the ContentResolver, we copy the addons
+     * to the app private dir to make python import work. Only the changed addons are copied,
+     * see AddonsSync. */
     public static boolean copyAddonsToPrivDir(Context ctx, File privAddons) {
         Uri publicUri = getUserDir(ctx);
         if (publicUri == null)
             return false;
 
-        privAddons.mkdirs();
-
-        // delete all existing .py files, but not the other kind of files, possibly created by the addons
-        for (File f : Objects.requireNonNull(privAddons.listFiles())) {
-            String name = f.getName();
-            if (name.endsWith(".py") || (name.equals("__pycache__")))
-                f.delete();
-        }
-
-        Uri srcFolder = DocumentsContract.buildChildDocumentsUriUsingTree(publicUri, DocumentsContract.getTreeDocumentId(publicUri));
-        Log.d(TAG, "Copying public addons from: " + srcFolder + " to " + privAddons);
-        List<Uri> addonsUris = listUserAddons(ctx, publicUri);
-
-        for(Uri srcUri: addonsUris) {
-            String path = srcUri.getPath();
-            if (path == null)
-                continue;
-
-            int slash = path.lastIndexOf("/");
-            if (slash > 0) {
-                String srcFname = path.substring(slash + 1);
-
-                if (!srcFname.endsWith(".py"))
-                    continue;
-
-                File outFile = new File(privAddons.getAbsolutePath() + "/" + srcFname);
-                Log.d(TAG, "Found addon: " + srcFname);
-
-                // Copy from srcUri to outFile
-                try {
-                    try (InputStream in = new BufferedInputStream(ctx.getContentResolver().openInputStream(srcUri))) {
-                        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile))) {
-                            byte[] bytesIn = new byte[4096];
-                            int read;
-                            while ((read = in.read(bytesIn)) != -1)
-                                out.write(bytesIn, 0, read);
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    Log.e(TAG, e.toString());
-
-                    return false;
-                }
-            }
-        }
-
-        return true;
+        return new AddonsSync(ctx, privAddons).sync(publicUri);
     }
 
     @Override
@@ -0,0 +1,245 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2023 - Emanuele Faranda
+ */
+
+package com.pcapdroid.mitm;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/* Incrementally syncs the public addons to the app private dir. Only the changed addons are copied,
+ * so that the unchanged ones keep their mtime and their __pycache__ bytecode stays valid.
+ * The size, lastModified and hash of the synced addons are stored in MANIFEST_FNAME. */
+class AddonsSync {
+    private static final String TAG = "AddonsSync";
+    private static final String MANIFEST_FNAME = ".addons-sync.json";
+    private static final String PYCACHE_DIR = "__pycache__";
+
+    private final Context mContext;
+    private final File mPrivAddons;
+    private final JSONObject mManifest;
+    private int mNumCopied;
+
+    AddonsSync(Context ctx, File privAddons) {
+        mContext = ctx;
+        mPrivAddons = privAddons;
+        mManifest = loadManifest();
+    }
+
+    boolean sync(Uri publicUri) {
+        //noinspection ResultOfMethodCallIgnored
+        mPrivAddons.mkdirs();
+
+        HashSet<String> found = new HashSet<>();
+        boolean success = true;
+
+        Uri srcFolder = DocumentsContract.buildChildDocumentsUriUsingTree(publicUri, DocumentsContract.getTreeDocumentId(publicUri));
+        Log.d(TAG, "Syncing public addons from: " + srcFolder + " to " + mPrivAddons);
+
+        try (Cursor cursor = mContext.getContentResolver().query(srcFolder,
+                new String[]{
+                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                        DocumentsContract.Document.COLUMN_SIZE,
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED
+                }, null, null, null)) {
+            if ((cursor != null) && cursor.moveToFirst()) {
+                do {
+                    String fname = cursor.getString(1);
+                    if ((fname == null) || !fname.endsWith(".py") || fname.contains("/"))
+                        continue;
+
+                    found.add(fname);
+                    Uri srcUri = DocumentsContract.buildDocumentUriUsingTree(publicUri, cursor.getString(0));
+
+                    if (!syncAddon(srcUri, fname, cursor.getLong(2), cursor.getLong(3)))
+                        success = false;
+                } while (cursor.moveToNext());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.e(TAG, e.toString());
+            return false;
+        }
+
+        removeDeleted(found);
+        saveManifest();
+
+        Log.d(TAG, "Addons synced: " + found.size() + " total, " + mNumCopied + " copied");
+        return success;
+    }
+
+    private boolean syncAddon(Uri srcUri, String fname, long size, long lastModified) {
+        File outFile = new File(mPrivAddons, fname);
+        JSONObject entry = mManifest.optJSONObject(fname);
+
+        if ((entry != null) && outFile.exists()
+                && (entry.optLong("size", -1) == size)
+                && (entry.optLong("lastModified", -1) == lastModified)
+                && (outFile.length() == size)) {
+            // unchanged
+            return true;
+        }
+
+        try {
+            byte[] data;
+            try (InputStream in = mContext.getContentResolver().openInputStream(srcUri)) {
+                if (in == null)
+                    return false;
+                data = readAll(in);
+            }
+
+            String hash = sha256(data);
+
+            // e.g. the file was touched but not modified
+            if ((entry == null) || !hash.equals(entry.optString("sha256")) || !outFile.exists()
+                    || (outFile.length() != data.length)) {
+                Log.d(TAG, "Copying addon: " + fname);
+                writeFile(outFile, data);
+                removeBytecode(fname);
+                mNumCopied++;
+            }
+
+            entry = new JSONObject();
+            entry.put("size", size);
+            entry.put("lastModified", lastModified);
+            entry.put("sha256", hash);
+            mManifest.put(fname, entry);
+        } catch (IOException | JSONException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.toString());
+            return false;
+        }
+
+        return true;
+    }
+
+    // delete the addons removed from the public dir, but not the other files, possibly created by the addons
+    private void removeDeleted(HashSet<String> found) {
+        File[] files = mPrivAddons.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+
+                if (name.endsWith(".py") && !found.contains(name)) {
+                    Log.d(TAG, "Removing addon: " + name);
+
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                    removeBytecode(name);
+                }
+            }
+        }
+
+        Iterator<String> it = mManifest.keys();
+        while (it.hasNext()) {
+            if (!found.contains(it.next()))
+                it.remove();
+        }
+    }
+
+    // delete the compiled bytecode of the addon, e.g. __pycache__/myaddon.cpython-311.pyc
+    private void removeBytecode(String fname) {
+        String prefix = fname.substring(0, fname.length() - 3) + ".";
+        File[] files = new File(mPrivAddons, PYCACHE_DIR).listFiles();
+        if (files == null)
+            return;
+
+        for (File f : files) {
+            String name = f.getName();
+
+            if (name.startsWith(prefix) && name.endsWith(".pyc")) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+
+    private JSONObject loadManifest() {
+        File file = new File(mPrivAddons, MANIFEST_FNAME);
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            return new JSONObject(new String(readAll(in), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            // first sync, or corrupted
+            return new JSONObject();
+        }
+    }
+
+    private void saveManifest() {
+        try {
+            writeFile(new File(mPrivAddons, MANIFEST_FNAME), mManifest.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the manifest: " + e);
+        }
+    }
+
+    // write to a temporary file first, to never leave a partially written file
+    private static void writeFile(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        }
+
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[16384];
+        int read;
+
+        while ((read = in.read(buf)) != -1)
+            out.write(buf, 0, read);
+
+        return out.toByteArray();
+    }
+
+    private static String sha256(byte[] data) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+
+        for (byte b : digest)
+            sb.append(String.format("%02x", b));
+
+        return sb.toString();
+    }
+}
@@ -21,6 +21,7 @@ package com.pcapdroid.mitm;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
@@ -44,15 +45,7 @@ import android.widget.Toast;
 import com.chaquo.python.PyObject;
 import com.chaquo.python.Python;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -75,12 +68,36 @@ public class JsInjectorActivity extends Activity {
     private TextView mEmptyText;
     private ScriptsAdapter mAdapter;
     private final ExecutorService mDownloadWorkers = Executors.newFixedThreadPool(4);
+    private final ExecutorService mScriptsLoader = Executors.newSingleThreadExecutor();
+    private int mRefreshGeneration = 0;
+    private String mHome;
     private final HashSet<String> mUrlsDownloading = new HashSet<>();
     private final Handler mHandler = new Handler(Looper.getMainLooper());
     private ActionMode mActionMode;
     private final ArrayList<IJsUserscript> mSelected = new ArrayList<>();
+    private ScriptsUpdater mUpdater;
     PyObject userscripts;
 
+    private static ScriptsUpdater sUpdater;
+
+    static ArrayList<String> getScriptsUrls(SharedPreferences prefs) {
+        String prefVal = prefs.getString(SCRIPTS_PREF, "");
+        if(prefVal.isEmpty())
+            return new ArrayList<>();
+
+        return new ArrayList<>(Arrays.asList(prefVal.split(Pattern.quote(SEPARATOR))));
+    }
+
+    // shared with ScriptsUpdateJob, to deduplicate the in-flight downloads
+    static synchronized ScriptsUpdater getUpdater(Context ctx) {
+        if(sUpdater == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx.getApplicationContext());
+            sUpdater = new ScriptsUpdater(JsUserscriptsIndex.getScriptsDir(Utils.getPythonHome()),
+                    new ScriptsUpdater.PrefsValidatorStore(prefs));
+        }
+        return sUpdater;
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -91,10 +108,9 @@ public class JsInjectorActivity extends Activity {
         mEmptyText = findViewById(R.id.list_empty);
 
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String prefVal = mPrefs.getString(SCRIPTS_PREF, "");
-        if(!prefVal.isEmpty())
-            mUrls = new ArrayList<>(Arrays.asList(
-                mPrefs.getString(SCRIPTS_PREF, "").split(Pattern.quote(SEPARATOR))));
+        mUrls = getScriptsUrls(mPrefs);
+        mUpdater = getUpdater(this);
+        ScriptsUpdateJob.schedule(this);
 
         mAdapter = new ScriptsAdapter(this);
         mListView.setAdapter(mAdapter);
@@ -191,6 +207,7 @@ public class JsInjectorActivity extends Activity {
 
         Python py = Python.getInstance();
         userscripts = py.getModule("userscripts");
+        mHome = Utils.getPythonHome();
         refreshScripts();
     }
 
@@ -201,6 +218,8 @@ public class JsInjectorActivity extends Activity {
         builder.setPositiveButton(android.R.string.yes, (dialog, which) -> {
             if(mSelected.size() >= mAdapter.getCount()) {
                 mAdapter.clear();
+                for(String url: mUrls)
+                    mUpdater.forget(url);
                 mUrls.clear();
                 saveUrls();
             } else {
@@ -238,6 +257,7 @@ public class JsInjectorActivity extends Activity {
             if(!toKeep.contains(fname)) {
                 it.remove();
                 mUrlsDownloading.remove(url);
+                mUpdater.forget(url);
             }
         }
 
@@ -247,6 +267,7 @@ public class JsInjectorActivity extends Activity {
     @Override
     protected void onDestroy() {
         mDownloadWorkers.shutdownNow();
+        mScriptsLoader.shutdownNow();
         mUrlsDownloading.clear();
 
         super.onDestroy();
@@ -311,10 +332,7 @@ public class JsInjectorActivity extends Activity {
     }
 
     private String urlFileName(String url) {
-        int idx = url.lastIndexOf('/');
-        if(idx == -1)
-            return "";
-        return url.substring(idx + 1);
+        return ScriptsUpdater.urlFileName(url);
     }
 
     private void saveUrls() {
@@ -340,8 +358,14 @@ public class JsInjectorActivity extends Activity {
         return true;
     }
 
+    // NOTE: called from the mScriptsLoader thread
     private ArrayList<IJsUserscript> getScriptsOnDisk() {
-        ArrayList<IJsUserscript> rv = new ArrayList<>();
+        ArrayList<IJsUserscript> rv = JsUserscriptsIndex.load(mHome);
+        if(rv != null)
+            return rv;
+
+        // index missing or stale, parse the scripts (this also updates the index)
+        rv = new ArrayList<>();
 
         PyObject pyres = userscripts.callAttr("getJsUserscripts");
         if(pyres != null) {
@@ -415,7 +439,24 @@ public class JsInjectorActivity extends Activity {
             mActionMode = null;
         }
 
-        ArrayList<IJsUserscript> on_disk = getScriptsOnDisk();
+        // only the latest refresh is applied
+        final int generation = ++mRefreshGeneration;
+
+        try {
+            mScriptsLoader.execute(() -> {
+                ArrayList<IJsUserscript> on_disk = getScriptsOnDisk();
+
+                mHandler.post(() -> {
+                    if((generation == mRefreshGeneration) && !isDestroyed())
+                        onScriptsLoaded(on_disk);
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+
+    private void onScriptsLoaded(ArrayList<IJsUserscript> on_disk) {
         HashMap<String, IJsUserscript> fname_to_script = new HashMap<>();
 
         // Delete any unknown script
@@ -458,17 +499,12 @@ public class JsInjectorActivity extends Activity {
         if(mUrlsDownloading.contains(url))
             return;
 
-        String fname = urlFileName(url);
-        PyObject pyres = userscripts.callAttr("getScriptPath", fname);
-        assert(pyres != null);
-        final String outputPath = pyres.toString();
-
         try {
             mDownloadWorkers.execute(() -> {
-                Log.i(TAG, "Downloading " + url);
+                Log.i(TAG, "Updating " + url);
 
-                boolean success = downloadFile(url, outputPath);
-                mHandler.post(() -> onScriptDownloadFinished(url, success));
+                ScriptsUpdater.Result result = mUpdater.update(url);
+                mHandler.post(() -> onScriptDownloadFinished(url, result));
             });
 
             mUrlsDownloading.add(url);
@@ -477,72 +513,21 @@ public class JsInjectorActivity extends Activity {
         }
     }
 
-    private void onScriptDownloadFinished(String url, boolean success) {
-        Log.d(TAG, "Script " + url + " download success? " + success);
+    private void onScriptDownloadFinished(String url, ScriptsUpdater.Result result) {
+        Log.d(TAG, "Script " + url + " update result: " + result);
 
         boolean found = mUrlsDownloading.remove(url);
         if(!found)
             return;
 
-        if(success) {
+        if(result == ScriptsUpdater.Result.UPDATED) {
             MitmService.reloadJsInjectorScripts();
             refreshScripts();
+        } else if(result == ScriptsUpdater.Result.NOT_MODIFIED) {
+            // no need to reload, only replace the loading placeholder
+            refreshScripts();
         } else
             Toast.makeText(this, getString(R.string.script_download_failed, urlFileName(url)), Toast.LENGTH_LONG)
                     .show();
     }
-
-    private static boolean downloadFile(String _url, String path) {
-        boolean has_contents = false;
-
-        try (FileOutputStream out = new FileOutputStream(path)) {
-            URL url = new URL(_url);
-
-            try (BufferedOutputStream bos = new BufferedOutputStream(out)) {
-                HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                try {
-                    // Necessary otherwise the connection will stay open
-                    con.setRequestProperty("Connection", "Close");
-                    con.setConnectTimeout(5000);
-                    con.setReadTimeout(5000);
-
-                    try (InputStream in = new BufferedInputStream(con.getInputStream())) {
-                        byte[] bytesIn = new byte[4096];
-                        int read;
-                        while ((read = in.read(bytesIn)) != -1) {
-                            bos.write(bytesIn, 0, read);
-                            has_contents |= (read > 0);
-                        }
-                    } catch (SocketTimeoutException _ignored) {
-                        Log.w(TAG, "Timeout while fetching " + _url);
-                    }
-                } finally {
-                    con.disconnect();
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        if (!has_contents) {
-            Log.d(TAG, "Downloaded file from " + _url + " is empty");
-
-            try {
-                //noinspection ResultOfMethodCallIgnored
-                (new File(path + ".tmp")).delete(); // if exists
-            } catch (Exception ignored) {
-                // ignore
-            }
-            return false;
-        }
-
-        // Only write the target path if it was successful
-        File dst = new File(path);
-
-        // NOTE: renameTo seem to return false even on success
-        //noinspection ResultOfMethodCallIgnored
-        (new File(path + ".tmp")).renameTo(dst);
-
-        return dst.exists();
-    }
 }
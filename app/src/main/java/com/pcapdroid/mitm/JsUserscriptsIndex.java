@@ -0,0 +1,169 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2023 - Emanuele Faranda
+ */
+
+package com.pcapdroid.mitm;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/* Reads the scripts metadata index written by js_injector.py (see JsInjector.update_index), so that
+ * the scripts can be listed without parsing them via Python. */
+public class JsUserscriptsIndex {
+    private static final String TAG = "JsUserscriptsIndex";
+    private static final String INDEX_FNAME = "js_injector_index.json";
+    private static final String SCRIPTS_DIR = "js_injector";
+    private static final int INDEX_VERSION = 1;
+
+    public static class IndexedScript implements IJsUserscript {
+        private final String mFname;
+        private final String mName;
+        private final String mAuthor;
+        private final String mVersion;
+        private final String mDescription;
+        private final String[] mMatch;
+        private final String mSha256;
+
+        IndexedScript(String fname, JSONObject obj) throws JSONException {
+            mFname = fname;
+            mName = obj.getString("name");
+            mAuthor = obj.optString("author");
+            mVersion = obj.optString("version");
+            mDescription = obj.optString("description");
+            mSha256 = obj.optString("sha256");
+
+            JSONArray match = obj.optJSONArray("match");
+            mMatch = new String[(match != null) ? match.length() : 0];
+            for(int i=0; i<mMatch.length; i++)
+                mMatch[i] = match.getString(i);
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public String getAuthor() {
+            return mAuthor;
+        }
+
+        @Override
+        public String getVersion() {
+            return mVersion;
+        }
+
+        @Override
+        public String getDescription() {
+            return mDescription;
+        }
+
+        @Override
+        public String getFname() {
+            return mFname;
+        }
+
+        public String[] getMatch() {
+            return mMatch;
+        }
+
+        public String getSha256() {
+            return mSha256;
+        }
+    }
+
+    public static File getScriptsDir(String home) {
+        return new File(home, SCRIPTS_DIR);
+    }
+
+    /* Returns the scripts on disk, or null if the index is missing or does not reflect the scripts
+     * on disk (e.g. a script was downloaded after the index was written). In such case, the
+     * scripts must be parsed via userscripts.getJsUserscripts, which also updates the index.
+     * Performs disk I/O, must not be called from the main thread. */
+    public static ArrayList<IJsUserscript> load(String home) {
+        File[] files = getScriptsDir(home).listFiles();
+        if(files == null)
+            return null;
+
+        JSONObject scripts;
+        try {
+            JSONObject index = new JSONObject(readFile(new File(home, INDEX_FNAME)));
+            if(index.getInt("version") != INDEX_VERSION)
+                return null;
+            scripts = index.getJSONObject("scripts");
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Index not available: " + e);
+            return null;
+        }
+
+        ArrayList<IJsUserscript> rv = new ArrayList<>();
+        int numFiles = 0;
+
+        try {
+            for(File file: files) {
+                String fname = file.getName();
+
+                // used for temporary downloads
+                if(fname.endsWith(".tmp"))
+                    continue;
+                numFiles++;
+
+                JSONObject entry = scripts.optJSONObject(fname);
+                if((entry == null) ||
+                        (entry.optLong("mtime") != file.lastModified()) ||
+                        (entry.optLong("size") != file.length())) {
+                    Log.d(TAG, "Stale index entry: " + fname);
+                    return null;
+                }
+
+                rv.add(new IndexedScript(fname, entry));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid index entry: " + e);
+            return null;
+        }
+
+        // deleted scripts
+        if(numFiles != scripts.length())
+            return null;
+
+        return rv;
+    }
+
+    private static String readFile(File file) throws IOException {
+        try(FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            int read;
+
+            while((off < data.length) && ((read = in.read(data, off, data.length - off)) > 0))
+                off += read;
+
+            return new String(data, 0, off, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -31,17 +31,226 @@ public class MitmAPI {
     public static final int MSG_GET_CA_CERTIFICATE = 2;
     public static final int MSG_STOP_MITM = 3;
     public static final int MSG_DISABLE_DOZE = 4;
+    public static final int MSG_GET_STATS = 5;
+
+    /* Applies a new MitmConfig (MITM_CONFIG) and the enabled addons to the running mitmproxy, without
+     * dropping the connections. Replies with MSG_UPDATE_CONFIG on success, or with MSG_ERROR if mitmproxy
+     * is not running, if the update failed or if a restart is required, i.e. if proxyPort,
+     * transparentMode, binaryFraming, connectionFrames, controlChannel or additionalOptions changed.
+     * The reply is sent asynchronously, once the update has been applied. Toggling dumpMasterSecrets only
+     * affects the TLS connections established after the update */
+    public static final int MSG_UPDATE_CONFIG = 6;
     public static final String MITM_CONFIG = "mitm_config";
     public static final String CERTIFICATE_RESULT = "certificate";
     public static final String SSLKEYLOG_RESULT = "sslkeylog";
 
+    /* Boolean extra of the bind Intent. If true, mitmproxy is initialized in the background
+     * as soon as the service is bound, to reduce the MSG_START_MITM startup time */
+    public static final String PREWARM = "prewarm";
+
+    /* MSG_GET_STATS reply data keys. Counters are longs, unless specified.
+     * Available while mitmproxy is running, MSG_ERROR is returned otherwise. */
+    public static final String STATS_ACTIVE_FLOWS = "active_flows";
+    public static final String STATS_TOTAL_FLOWS = "total_flows";
+    public static final String STATS_FRAMES = "frames";                              // Bundle: text frame type (e.g. "http_req") -> frames sent
+    public static final String STATS_BYTES = "bytes";                                // Bundle: text frame type -> payload bytes sent
+    public static final String STATS_DROPPED_FRAMES = "dropped_frames";              // see BACKPRESSURE_DROP_PAYLOAD
+    public static final String STATS_DROPPED_BYTES = "dropped_bytes";
+    public static final String STATS_TRUNCATED_FRAMES = "truncated_frames";          // see BACKPRESSURE_TRUNCATE
+    public static final String STATS_TRUNCATED_BYTES = "truncated_bytes";
+    public static final String STATS_OVERFLOW_FRAMES = "overflow_frames";            // payload frames discarded, see BACKPRESSURE_*
+    public static final String STATS_OVERFLOW_BYTES = "overflow_bytes";
+    public static final String STATS_COMPRESSED_FRAMES = "compressed_frames";        // see MitmConfig.compression
+    public static final String STATS_COMPRESSED_BYTES_IN = "compressed_bytes_in";    // payload bytes before compression
+    public static final String STATS_COMPRESSED_BYTES_OUT = "compressed_bytes_out";  // payload bytes after compression
+    public static final String STATS_QUEUE_FRAMES = "queue_frames";                  // frames waiting to be written to the socket
+    public static final String STATS_QUEUE_BYTES = "queue_bytes";                    // bytes waiting to be written to the socket
+    public static final String STATS_QUEUE_BYTES_HWM = "queue_bytes_hwm";            // high-water mark of STATS_QUEUE_BYTES
+    public static final String STATS_FRAMES_WRITTEN = "frames_written";              // frames written to the socket
+    public static final String STATS_BYTES_WRITTEN = "bytes_written";                // bytes written to the socket, including the headers
+    public static final String STATS_FLUSHES = "flushes";                            // socket writes, each can contain multiple frames
+    public static final String STATS_WRITE_TIME_MS = "write_time_ms";                // time spent writing to the socket
+    public static final String STATS_BLOCKED_TIME_MS = "blocked_time_ms";            // time the proxy was blocked waiting for the socket
+    public static final String STATS_FLUSH_LATENCY_MAX_MS = "flush_latency_max_ms";  // double, max time from queueing to write
+    public static final String STATS_FLUSH_LATENCY_AVG_MS = "flush_latency_avg_ms";  // double, average time from queueing to write
+    public static final String STATS_LOOP_LAG_MS = "loop_lag_ms";                    // double, last measured event loop lag
+    public static final String STATS_LOOP_LAG_MAX_MS = "loop_lag_max_ms";            // double
+    public static final String STATS_RSS = "rss";                                    // resident memory of the process, in bytes
+    public static final String STATS_LOG_LINES = "log_lines";                        // log lines accepted
+    public static final String STATS_LOG_ENTRIES = "log_entries";                    // FRAME_LOG sent, each can contain multiple lines
+    public static final String STATS_LOG_DROPPED = "log_dropped";                    // log lines dropped by the rate limiter
+    public static final String STATS_LOG_FILTERED = "log_filtered";                  // log lines below MitmConfig.minLogLevel
+    public static final String STATS_RETAINED_MSG_FLOWS = "retained_msg_flows";      // active TCP/WebSocket flows
+    public static final String STATS_RETAINED_MSG_BYTES = "retained_msg_bytes";      // TCP/WebSocket messages bytes kept in memory
+    public static final String STATS_RETAINED_MSG_MAX_FLOW_BYTES = "retained_msg_max_flow_bytes";
+    public static final String STATS_TRIMMED_MSGS = "trimmed_msgs";                  // exported messages removed from the flows
+    public static final String STATS_TRIMMED_MSG_BYTES = "trimmed_msg_bytes";
+    public static final String STATS_JS_INJECTOR = "js_injector";                    // Bundle, see STATS_JS_*
+    public static final String STATS_STARTUP = "startup";                            // Bundle, see STATS_STARTUP_*
+    public static final String STATS_CERT_CACHE = "cert_cache";                      // Bundle, see STATS_CERT_*
+    public static final String STATS_TLS_SESSIONS = "tls_sessions";                  // Bundle, see STATS_TLS_*, only with MitmConfig.tlsSessionCache
+    public static final String STATS_GOVERNOR = "governor";                          // Bundle, see STATS_GOVERNOR_*
+    public static final String STATS_CTRL_FRAMES = "ctrl_frames";                    // control frames received, see CTRL_*
+    public static final String STATS_CTRL_INVALID = "ctrl_invalid";                  // unknown, malformed or stale (closed connection) control frames
+    public static final String STATS_BYPASS_HOSTS = "bypass_hosts";                  // see CTRL_BYPASS_HOST
+    public static final String STATS_BYPASSED_CONNS = "bypassed_conns";              // TLS connections not decrypted due to CTRL_BYPASS_HOST
+    public static final String STATS_STOPPED_CONNS = "stopped_conns";                // see CTRL_STOP_PAYLOAD
+    public static final String STATS_STOPPED_PAYLOADS = "stopped_payloads";          // payload frames not sent due to CTRL_STOP_PAYLOAD
+
+    /* Leaf certificates cache stats, nested into STATS_CERT_CACHE */
+    public static final String STATS_CERT_HITS = "hits";                             // certificates not generated
+    public static final String STATS_CERT_MISSES = "misses";                         // certificates generated
+    public static final String STATS_CERT_STORED = "stored";                         // certificates written to disk
+    public static final String STATS_CERT_EVICTED = "evicted";                       // least recently used certificates removed
+
+    /* Upstream TLS sessions cache stats, nested into STATS_TLS_SESSIONS */
+    public static final String STATS_TLS_CACHED = "sessions";                        // sessions currently cached
+    public static final String STATS_TLS_OFFERED = "offered";                        // handshakes which offered a cached session
+    public static final String STATS_TLS_RESUMED = "resumed";                        // handshakes which resumed a session
+    public static final String STATS_TLS_FULL = "full";                              // full handshakes
+    public static final String STATS_TLS_UNKNOWN = "unknown";                        // handshakes which offered a session, resumption not detectable
+    public static final String STATS_TLS_RESUMED_AVG_MS = "resumed_handshake_avg_ms";  // double
+    public static final String STATS_TLS_FULL_AVG_MS = "full_handshake_avg_ms";        // double
+
+    /* Duration of the startup phases (double, milliseconds), nested into STATS_STARTUP.
+     * The phases are sequential, in the listed order */
+    public static final String STATS_STARTUP_PREWARMED = "prewarmed";                // boolean, true if PREWARM completed before the start
+    public static final String STATS_STARTUP_PREWARM_MS = "prewarm_ms";              // duration of the PREWARM, not part of the startup
+    public static final String STATS_STARTUP_PREWARM_WAIT_MS = "prewarm_wait_ms";    // waiting for an in-progress PREWARM
+    public static final String STATS_STARTUP_ADDONS_SYNC_MS = "addons_sync_ms";      // copying the user addons to the private dir
+    public static final String STATS_STARTUP_MASTER_MS = "master_ms";                // creating the mitmproxy master
+    public static final String STATS_STARTUP_PCAPDROID_MS = "pcapdroid_ms";          // initializing the PCAPdroid addon
+    public static final String STATS_STARTUP_ADDONS_MS = "addons_ms";                // loading the Js Injector and the user addons
+    public static final String STATS_STARTUP_OPTIONS_MS = "options_ms";              // parsing the mitmproxy options
+    public static final String STATS_STARTUP_CERTIFICATE_MS = "certificate_ms";      // checking (or generating) the CA certificate
+    public static final String STATS_STARTUP_LISTEN_MS = "listen_ms";                // until the proxy is listening
+    public static final String STATS_STARTUP_TOTAL_MS = "total_ms";                  // from the Python entrypoint to listen
+
+    /* Memory governor stats, nested into STATS_GOVERNOR */
+    public static final String STATS_GOVERNOR_LEVEL = "level";                       // see GOVERNOR_*
+    public static final String STATS_GOVERNOR_LEVEL_HWM = "level_hwm";               // highest level reached
+    public static final String STATS_GOVERNOR_LEVEL_CHANGES = "level_changes";       // FRAME_GOVERNOR sent
+    public static final String STATS_GOVERNOR_BUDGET = "budget";                     // see MitmConfig.memoryBudget
+    public static final String STATS_GOVERNOR_BUFFERED_BYTES = "buffered_bytes";     // HTTP bodies and messages buffered by the in-flight flows
+    public static final String STATS_GOVERNOR_BUFFERED_BYTES_HWM = "buffered_bytes_hwm";
+    public static final String STATS_GOVERNOR_UNBUFFERED_BODIES = "unbuffered_bodies"; // bodies streamed because of the governor
+
+    /* Js Injector stats, nested into STATS_JS_INJECTOR */
+    public static final String STATS_JS_INJECTIONS = "injections";
+    public static final String STATS_JS_DECODE_TIME_MS = "decode_time_ms";           // double, time spent decoding the bodies
+    public static final String STATS_JS_INJECT_TIME_MS = "inject_time_ms";           // double, time spent modifying the HTML
+    public static final String STATS_JS_ENCODE_TIME_MS = "encode_time_ms";           // double, time spent re-encoding the bodies
+    public static final String STATS_JS_BYTES_IN = "bytes_in";                       // encoded body bytes before the injection
+    public static final String STATS_JS_BYTES_OUT = "bytes_out";                     // encoded body bytes after the injection
+
+    /* Binary frame header, used when MitmConfig.binaryFraming is set. All the fields are little endian:
+     *  u64 timestamp (millis) | u8 IP version | u8 IP protocol | u16 port | u8 frame type | u8 flags | u32 payload length
+     * The header is followed by the payload. The payload length refers to the (possibly compressed) payload. */
+    public static final int FRAME_HEADER_SIZE = 18;
+
+    /* Binary frame header used when MitmConfig.connectionFrames is also set. All the fields are little endian:
+     *  u32 timestamp offset (millis since the last FRAME_EPOCH) | u32 connection ID | u8 frame type | u8 flags | u32 payload length
+     * The connection ID refers to a previous FRAME_CONN_OPEN, 0 for the frames not related to a connection.
+     * The IP version, IP protocol and port of the connection are only sent in the FRAME_CONN_OPEN.
+     * The epoch only moves forward: the frames timestamped before it (e.g. after a clock change) have a 0 offset. */
+    public static final int FRAME_CONN_HEADER_SIZE = 14;
+
+    /* Binary frame flags */
+    public static final int FRAME_FLAG_ZLIB = 0x01;           // the payload is zlib compressed, see java.util.zip.Inflater
+    public static final int FRAME_FLAG_ZSTD = 0x02;           // the payload is a zstd frame
+
+    /* Payload compression, see MitmConfig.compression. Requires the binary framing.
+     * Only payload frames which actually shrink are compressed, as indicated by the FRAME_FLAG_* */
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_ZLIB = 1;             // zlib, fastest level
+    public static final int COMPRESSION_ZSTD = 2;             // zstd level 1, falls back to COMPRESSION_ZLIB if not available
+
+    /* How the Js Injector re-encodes the compressed (e.g. gzip, br) HTML bodies, see MitmConfig.jsInjectorEncoding */
+    public static final int JS_ENCODING_KEEP = 0;             // keep the original encoding, at its default level
+    public static final int JS_ENCODING_FAST = 1;             // keep the original encoding, at its fastest level
+    public static final int JS_ENCODING_IDENTITY = 2;         // send the body uncompressed, removing the content-encoding
+
+    /* Upstream TLS sessions cache, see MitmConfig.tlsSessionCache */
+    public static final int TLS_SESSIONS_OFF = 0;
+    public static final int TLS_SESSIONS_ON = 1;              // sessions are shared by the connections of the same proxy session
+    public static final int TLS_SESSIONS_KEEP = 2;            // sessions are also kept for the next MSG_START_MITM (in memory)
+
+    /* Binary frame types. The text framing uses the corresponding string identifiers. */
+    public static final int FRAME_RUNNING = 1;                // "running"
+    public static final int FRAME_TLS_ERROR = 2;              // "tls_err"
+    public static final int FRAME_HTTP_ERROR = 3;             // "http_err"
+    public static final int FRAME_HTTP_REQUEST = 4;           // "http_req"
+    public static final int FRAME_HTTP_REPLY = 5;             // "http_rep"
+    public static final int FRAME_TCP_CLIENT_MSG = 6;         // "tcp_climsg"
+    public static final int FRAME_TCP_SERVER_MSG = 7;         // "tcp_srvmsg"
+    public static final int FRAME_TCP_ERROR = 8;              // "tcp_err"
+    public static final int FRAME_WEBSOCKET_CLIENT_MSG = 9;   // "ws_climsg"
+    public static final int FRAME_WEBSOCKET_SERVER_MSG = 10;  // "ws_srvmsg"
+    public static final int FRAME_DATA_TRUNCATED = 11;        // "trunc"
+    public static final int FRAME_MASTER_SECRET = 12;         // "secret"
+    public static final int FRAME_LOG = 13;                   // "log"
+    public static final int FRAME_JS_INJECTED = 14;           // "js_inject"
+    public static final int FRAME_PAYLOAD_DROPPED = 15;       // "dropped", payload: number of dropped bytes (ASCII)
+    public static final int FRAME_HTTP_REQUEST_BODY = 16;     // "http_req_body", see MitmConfig.streamBodies
+    public static final int FRAME_HTTP_REPLY_BODY = 17;       // "http_rep_body"
+    public static final int FRAME_CONN_OPEN = 18;             // "conn_open", payload: u8 IP version | u8 IP protocol | u16 port
+    public static final int FRAME_CONN_CLOSE = 19;            // "conn_close", the connection ID may be reused after this
+    public static final int FRAME_EPOCH = 20;                 // "epoch", payload: u64 timestamp (millis). The first frame, also sent
+                                                              // when the timestamp offset would overflow
+    public static final int FRAME_GOVERNOR = 21;              // "governor", sent when the GOVERNOR_* level changes,
+                                                              // payload: "level:buffered_bytes:budget" (ASCII)
+
+    /* What to do with the payload when PCAPdroid cannot keep up, see MitmConfig.backpressurePolicy.
+     * The metadata frames (e.g. errors, logs) are never dropped. With the non-blocking policies, if PCAPdroid
+     * stops reading, the payload frames (including FRAME_PAYLOAD_DROPPED) are discarded once the pending data
+     * reaches a hard limit, see STATS_OVERFLOW_FRAMES. */
+    public static final int BACKPRESSURE_BLOCK = 0;           // wait for PCAPdroid, stalling the proxied connections
+    public static final int BACKPRESSURE_DROP_PAYLOAD = 1;    // replace the payload frames with a FRAME_PAYLOAD_DROPPED
+    public static final int BACKPRESSURE_TRUNCATE = 2;        // truncate the payload to the short payload size. The FRAME_DATA_TRUNCATED
+                                                              // precedes the truncated payload frame, not follows it
+
+    /* Memory governor levels, see MitmConfig.memoryBudget. The bodies which are not buffered are
+     * streamed: exported as FRAME_HTTP_*_BODY with streamBodies, otherwise only the head is exported,
+     * followed by a FRAME_DATA_TRUNCATED */
+    public static final int GOVERNOR_NORMAL = 0;              // bodies are buffered
+    public static final int GOVERNOR_HIGH = 1;                // above 75% of the budget, bodies >= 256 KB or of unknown size are not buffered
+    public static final int GOVERNOR_CRITICAL = 2;            // above the budget, bodies >= 16 KB or of unknown size are not buffered
+
+    /* Control frames, which PCAPdroid can write to the fd of MSG_START_MITM with MitmConfig.controlChannel.
+     * Header (little endian): u8 control type | u8 flags (0) | u16 payload length, followed by the payload */
+    public static final int CTRL_HEADER_SIZE = 4;
+    public static final int CTRL_BYPASS_HOST = 1;             // payload: host (ASCII). The new TLS connections to the host, or its
+                                                              // subdomains, are not decrypted (no frames are exported)
+    public static final int CTRL_UNBYPASS_HOST = 2;           // payload: host (ASCII), empty to remove all the bypassed hosts
+    public static final int CTRL_STOP_PAYLOAD = 3;            // payload: u32 connection ID with connectionFrames, otherwise the port
+                                                              // of the frame header. Stops exporting the payload frames of the connection,
+                                                              // without altering the proxied traffic. Ignored if the connection is closed
+    public static final int CTRL_RESUME_PAYLOAD = 4;          // payload: as CTRL_STOP_PAYLOAD
+
     public static final class MitmConfig implements Serializable {
+        // the value computed for the original fields: configs sent by clients built against an older
+        // MitmAPI can still be deserialized, with the new fields set to their default value
+        private static final long serialVersionUID = 1133360710727308291L;
+
         public int proxyPort;              // the SOCKS5 port to use to accept mitm-ed connections
         public boolean transparentMode;    // true to use transparent proxy mode, false to use SOCKS5 proxy mode
         public boolean sslInsecure;        // true to disable upstream certificate check
         public boolean dumpMasterSecrets;  // true to enable the TLS master secrets dump messages (similar to SSLKEYLOG)
         public boolean shortPayload;       // if true, only the initial portion of the payload will be sent
+        public int shortPayloadSize;       // with shortPayload, the max bytes to send per direction. 0 for the default (512)
         public String proxyAuth;           // SOCKS5 proxy authentication, "user:pass"
         public String additionalOptions;   // provide additional options to mitmproxy
+        public boolean binaryFraming;      // if true, messages use the binary header (see FRAME_HEADER_SIZE) instead of the text one
+        public int backpressurePolicy;     // what to do when PCAPdroid cannot keep up, see BACKPRESSURE_*
+        public int compression;            // payload compression, see COMPRESSION_*
+        public boolean streamBodies;       // if true, large HTTP bodies are not buffered. The HTTP request/reply frame only
+                                           // contains the head, followed by FRAME_HTTP_*_BODY frames with the raw body chunks
+        public int jsInjectorEncoding;     // see JS_ENCODING_*
+        public int tlsSessionCache;        // resume the upstream TLS sessions, see TLS_SESSIONS_*
+        public int minLogLevel;            // android.util.Log level of the FRAME_LOG to send. 0 for the default (Log.DEBUG)
+        public boolean connectionFrames;   // with binaryFraming, use the FRAME_CONN_HEADER_SIZE header and FRAME_CONN_* frames
+        public long memoryBudget;          // max bytes buffered by the in-flight flows, see GOVERNOR_*. 0 for the default
+                                           // (derived from ActivityManager.getMemoryClass), -1 to disable the governor
+        public boolean controlChannel;     // read the CTRL_* frames sent by PCAPdroid on the fd
     }
 }
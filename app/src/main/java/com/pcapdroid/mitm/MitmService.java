@@ -22,6 +22,7 @@ package com.pcapdroid.mitm;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.app.Service;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -36,6 +37,7 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -45,6 +47,8 @@ import com.chaquo.python.Python;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Objects;
 
 import com.pcapdroid.mitm.MitmAPI.MitmConfig;
 
@@ -54,8 +58,12 @@ public class MitmService extends Service implements Runnable {
     Messenger mMessenger;
     ParcelFileDescriptor mFd;
     Thread mThread;
+    Thread mPrewarmThread;
+    volatile double mPrewarmMs = -1;
+    final Bundle mStartupPhases = new Bundle();
     PyObject mitm;
-    MitmConfig mConf;
+    volatile MitmConfig mConf;
+    final Object mUpdateLock = new Object();
     String m_home;
 
     @SuppressLint("BatteryLife")
@@ -100,9 +108,30 @@ public class MitmService extends Service implements Runnable {
     @Override
     public IBinder onBind(Intent intent) {
         mMessenger = new Messenger(new IncomingHandler(getMainLooper(),this));
+
+        if(intent.getBooleanExtra(MitmAPI.PREWARM, false))
+            prewarm();
+
         return mMessenger.getBinder();
     }
 
+    private void prewarm() {
+        if((mPrewarmThread != null) || (mPrewarmMs >= 0))
+            return;
+
+        mPrewarmThread = new Thread(() -> {
+            Log.d(TAG, "Prewarm started");
+
+            try {
+                mPrewarmMs = mitm.callAttr("prewarm").toDouble();
+                Log.i(TAG, "Prewarm completed in " + (long) mPrewarmMs + " ms");
+            } catch (Exception e) {
+                Log.e(TAG, "Prewarm failed: " + e);
+            }
+        }, "MitmPrewarm");
+        mPrewarmThread.start();
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         return START_NOT_STICKY;
@@ -113,6 +142,8 @@ public class MitmService extends Service implements Runnable {
             case MitmAPI.MSG_START_MITM:
                 mFd = (ParcelFileDescriptor) msg.obj;
                 mConf = (MitmConfig) msg.getData().getSerializable(MitmAPI.MITM_CONFIG);
+                if(mConf != null)
+                    setDefaultMemoryBudget(mConf);
 
                 if(mThread == null) {
                     mThread = new Thread(MitmService.this);
@@ -135,6 +166,17 @@ public class MitmService extends Service implements Runnable {
             case MitmAPI.MSG_DISABLE_DOZE:
                 askDisableDoze();
                 break;
+            case MitmAPI.MSG_UPDATE_CONFIG:
+                handleUpdateConfig(msg.replyTo,
+                        (MitmConfig) msg.getData().getSerializable(MitmAPI.MITM_CONFIG));
+                break;
+            case MitmAPI.MSG_GET_STATS:
+                // served while running, the stats are read without stopping the mitm thread
+                if(mThread != null)
+                    handleGetStats(msg.replyTo);
+                else
+                    replyWithError(msg.replyTo);
+                break;
             default:
                 log_w("Unknown message: " + msg.what);
         }
@@ -177,20 +219,34 @@ public class MitmService extends Service implements Runnable {
         boolean dump_client = !mConf.transparentMode;
 
         String[] enabled_addons = AddonsActivity.getEnabledAddons(this).toArray(new String[]{});
+        long start = SystemClock.elapsedRealtimeNanos();
+        File addons_home = prepareAddonsHome();
+        long synced = SystemClock.elapsedRealtimeNanos();
 
-        File addons_home = getWritablePublicAddonsHome();
-        if (addons_home == null) {
-            Log.w(TAG, "Addons will write to the app private dir");
-            addons_home = new File(m_home + "/mitmproxy-addons");
-            AddonsActivity.copyAddonsToPrivDir(this, addons_home);
+        // the prewarm is running concurrently, wait for it to avoid doing the same work twice
+        Thread prewarm = mPrewarmThread;
+        if(prewarm != null) {
+            try {
+                prewarm.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        long prewarmed = SystemClock.elapsedRealtimeNanos();
+
+        synchronized (mStartupPhases) {
+            mStartupPhases.clear();
+            mStartupPhases.putDouble(MitmAPI.STATS_STARTUP_ADDONS_SYNC_MS, (synced - start) / 1e6);
+            mStartupPhases.putDouble(MitmAPI.STATS_STARTUP_PREWARM_WAIT_MS, (prewarmed - synced) / 1e6);
+            if(mPrewarmMs >= 0)
+                mStartupPhases.putDouble(MitmAPI.STATS_STARTUP_PREWARM_MS, mPrewarmMs);
         }
-        addons_home.mkdirs();
 
         Log.i(TAG, "Addons home: " + addons_home);
 
         try {
             mitm.callAttr("run", mFd.getFd(), enabled_addons, addons_home.toString(), dump_client,
-                    mConf.dumpMasterSecrets, mConf.shortPayload, args);
+                    mConf, args);
         } finally {
             try {
                 if(mFd != null)
@@ -220,6 +276,18 @@ public class MitmService extends Service implements Runnable {
         stopSelf();
     }
 
+    private File prepareAddonsHome() {
+        File addons_home = getWritablePublicAddonsHome();
+        if (addons_home == null) {
+            Log.w(TAG, "Addons will write to the app private dir");
+            addons_home = new File(m_home + "/mitmproxy-addons");
+            AddonsActivity.copyAddonsToPrivDir(this, addons_home);
+        }
+        addons_home.mkdirs();
+
+        return addons_home;
+    }
+
     private File getWritablePublicAddonsHome() {
         if (!AddonsActivity.hasFilesAccess(this))
             return null;
@@ -282,6 +350,131 @@ public class MitmService extends Service implements Runnable {
         }
     }
 
+    // half of the heap limit of the apps on this device: the memory class reflects the device RAM,
+    // which the python heap shares with the rest of the process
+    private void setDefaultMemoryBudget(MitmConfig conf) {
+        if(conf.memoryBudget != 0)
+            return;
+
+        ActivityManager am = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        int memoryClass = (am != null) ? am.getMemoryClass() : 64;
+        conf.memoryBudget = memoryClass * 1024L * 1024 / 2;
+        Log.d(TAG, "Memory budget: " + (conf.memoryBudget / 1024 / 1024) + " MB");
+    }
+
+    // true if the new config cannot be applied to the running mitmproxy
+    private static boolean requiresRestart(MitmConfig cur, MitmConfig conf) {
+        return (cur.proxyPort != conf.proxyPort) ||
+                (cur.transparentMode != conf.transparentMode) ||
+                (cur.binaryFraming != conf.binaryFraming) ||
+                (cur.connectionFrames != conf.connectionFrames) ||
+                (cur.controlChannel != conf.controlChannel) ||
+                !Objects.equals(cur.additionalOptions, conf.additionalOptions);
+    }
+
+    private void handleUpdateConfig(Messenger replyTo, MitmConfig conf) {
+        MitmConfig cur = mConf;
+
+        if((mThread == null) || (cur == null) || (conf == null)) {
+            replyWithError(replyTo);
+            return;
+        }
+
+        if(requiresRestart(cur, conf)) {
+            log_w("The new configuration requires a restart");
+            replyWithError(replyTo);
+            return;
+        }
+
+        // copying the addons and waiting for the event loop can take a while, keep the main thread responsive
+        new Thread(() -> {
+            // serialize the updates, so that they are applied in order
+            synchronized (mUpdateLock) {
+                setDefaultMemoryBudget(conf);
+                long start = SystemClock.elapsedRealtime();
+
+                // the enabled addons may have been changed, or added to the public dir
+                String[] enabled_addons = AddonsActivity.getEnabledAddons(this).toArray(new String[]{});
+                prepareAddonsHome();
+
+                PyObject pyres = mitm.callAttr("updateConfig", conf, enabled_addons);
+                if(pyres != null) {
+                    log_w("Configuration update failed: " + pyres);
+                    replyWithError(replyTo);
+                    return;
+                }
+
+                mConf = conf;
+                Log.i(TAG, "Configuration updated in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+
+            if(replyTo != null) {
+                try {
+                    replyTo.send(Message.obtain(null, MitmAPI.MSG_UPDATE_CONFIG));
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "MitmUpdateConfig").start();
+    }
+
+    private void handleGetStats(Messenger replyTo) {
+        if(replyTo == null)
+            return;
+
+        PyObject pyres = mitm.callAttr("getStats");
+        Bundle bundle = (pyres != null) ? pyDictToBundle(pyres) : new Bundle();
+
+        // add the phases measured in Java
+        Bundle startup = bundle.getBundle(MitmAPI.STATS_STARTUP);
+        if(startup == null)
+            startup = new Bundle();
+        synchronized (mStartupPhases) {
+            startup.putAll(mStartupPhases);
+        }
+        bundle.putBundle(MitmAPI.STATS_STARTUP, startup);
+        Message msg = Message.obtain(null, MitmAPI.MSG_GET_STATS);
+        msg.setData(bundle);
+
+        try {
+            replyTo.send(msg);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Converts a python dict of numbers, strings and nested dicts to a Bundle
+    private static Bundle pyDictToBundle(PyObject dict) {
+        PyObject builtins = Python.getInstance().getBuiltins();
+        PyObject dictType = builtins.get("dict");
+        Bundle bundle = new Bundle();
+
+        for(Map.Entry<PyObject, PyObject> entry: dict.asMap().entrySet()) {
+            String key = entry.getKey().toString();
+            PyObject val = entry.getValue();
+
+            if(val == null)
+                continue;
+
+            if(builtins.callAttr("isinstance", val, dictType).toBoolean()) {
+                bundle.putBundle(key, pyDictToBundle(val));
+                continue;
+            }
+
+            Object obj = val.toJava(Object.class);
+            if(obj instanceof Boolean)
+                bundle.putBoolean(key, (Boolean) obj);
+            else if((obj instanceof Double) || (obj instanceof Float))
+                bundle.putDouble(key, ((Number) obj).doubleValue());
+            else if(obj instanceof Number)
+                bundle.putLong(key, ((Number) obj).longValue());
+            else if(obj instanceof String)
+                bundle.putString(key, (String) obj);
+        }
+
+        return bundle;
+    }
+
     @SuppressLint("BatteryLife")
     @TargetApi(Build.VERSION_CODES.M)
     private void askDisableDoze() {
@@ -0,0 +1,94 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2023 - Emanuele Faranda
+ */
+
+package com.pcapdroid.mitm;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.List;
+
+/* Periodically updates the Js Injector userscripts in the background, see ScriptsUpdater */
+public class ScriptsUpdateJob extends JobService {
+    private static final String TAG = "ScriptsUpdateJob";
+    private static final int JOB_ID = 1;
+    private static final long UPDATE_INTERVAL_MS = 12 * 60 * 60 * 1000;
+    private Thread mThread;
+
+    public static void schedule(Context ctx) {
+        JobScheduler scheduler = ctx.getSystemService(JobScheduler.class);
+        if(scheduler == null)
+            return;
+
+        // jobs scheduled by the previous versions were not persisted
+        JobInfo pending = scheduler.getPendingJob(JOB_ID);
+        if((pending != null) && pending.isPersisted())
+            return;
+
+        // persisted across reboots, requires RECEIVE_BOOT_COMPLETED
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(ctx, ScriptsUpdateJob.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPeriodic(UPDATE_INTERVAL_MS)
+                .setPersisted(true)
+                .build();
+
+        Log.d(TAG, "Scheduling the scripts update");
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        List<String> urls = JsInjectorActivity.getScriptsUrls(prefs);
+        if(urls.isEmpty())
+            return false;
+
+        ScriptsUpdater updater = JsInjectorActivity.getUpdater(this);
+
+        mThread = new Thread(() -> {
+            Log.i(TAG, "Updating " + urls.size() + " scripts");
+
+            if(updater.updateAll(urls)) {
+                Log.i(TAG, "Scripts changed, reloading");
+                MitmService.reloadJsInjectorScripts();
+            }
+
+            jobFinished(params, false);
+        }, "ScriptsUpdateJob");
+        mThread.start();
+
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if(mThread != null)
+            mThread.interrupt();
+
+        // retry on the next period
+        return false;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2023 - Emanuele Faranda
+ */
+
+package com.pcapdroid.mitm;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/* Downloads the remote userscripts via conditional requests. The ETag and Last-Modified of each
+ * URL are stored in a ValidatorStore, so that unchanged scripts are not downloaded again and the
+ * script file is not touched.
+ * Connections are not closed explicitly, so that HttpURLConnection can reuse them (keep-alive).
+ * Concurrent updates of the same URL are deduplicated. */
+public class ScriptsUpdater {
+    private static final String TAG = "ScriptsUpdater";
+    private static final int TIMEOUT_MS = 5000;
+    private static final int BUFFER_SIZE = 16384;
+
+    public enum Result {
+        UPDATED,
+        NOT_MODIFIED,
+        FAILED
+    }
+
+    public interface ValidatorStore {
+        /* Returns the {ETag, Last-Modified} of the URL, or null if not available. Each value may be null */
+        String[] get(String url);
+        void put(String url, String etag, String lastModified);
+        void remove(String url);
+    }
+
+    /* A ValidatorStore backed by SharedPreferences */
+    public static class PrefsValidatorStore implements ValidatorStore {
+        private static final String ETAG_PREFIX = "js-etag:";
+        private static final String LAST_MODIFIED_PREFIX = "js-lastmod:";
+        private final SharedPreferences mPrefs;
+
+        public PrefsValidatorStore(SharedPreferences prefs) {
+            mPrefs = prefs;
+        }
+
+        @Override
+        public String[] get(String url) {
+            String etag = mPrefs.getString(ETAG_PREFIX + url, null);
+            String lastModified = mPrefs.getString(LAST_MODIFIED_PREFIX + url, null);
+
+            if((etag == null) && (lastModified == null))
+                return null;
+            return new String[]{etag, lastModified};
+        }
+
+        @Override
+        public void put(String url, String etag, String lastModified) {
+            mPrefs.edit()
+                    .putString(ETAG_PREFIX + url, etag)
+                    .putString(LAST_MODIFIED_PREFIX + url, lastModified)
+                    .apply();
+        }
+
+        @Override
+        public void remove(String url) {
+            mPrefs.edit()
+                    .remove(ETAG_PREFIX + url)
+                    .remove(LAST_MODIFIED_PREFIX + url)
+                    .apply();
+        }
+    }
+
+    private final File mScriptsDir;
+    private final ValidatorStore mValidators;
+    private final ConcurrentHashMap<String, FutureTask<Result>> mInFlight = new ConcurrentHashMap<>();
+
+    public ScriptsUpdater(File scriptsDir, ValidatorStore validators) {
+        mScriptsDir = scriptsDir;
+        mValidators = validators;
+    }
+
+    public static String urlFileName(String url) {
+        int idx = url.lastIndexOf('/');
+        if(idx == -1)
+            return "";
+        return url.substring(idx + 1);
+    }
+
+    public File getScriptFile(String url) {
+        return new File(mScriptsDir, urlFileName(url));
+    }
+
+    public boolean isInProgress(String url) {
+        return mInFlight.containsKey(url);
+    }
+
+    /* Updates the script of the given URL. If an update of the same URL is already in progress,
+     * waits for it and returns its result. Blocking, must not be called from the main thread. */
+    public Result update(String url) {
+        FutureTask<Result> task = new FutureTask<>(() -> doUpdate(url));
+        FutureTask<Result> existing = mInFlight.putIfAbsent(url, task);
+
+        if(existing != null)
+            task = existing;
+        else {
+            try {
+                task.run();
+            } finally {
+                mInFlight.remove(url, task);
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException | InterruptedException e) {
+            Log.w(TAG, "Update of " + url + " failed: " + e);
+            return Result.FAILED;
+        }
+    }
+
+    /* Updates all the scripts. Returns true if any of them changed */
+    public boolean updateAll(List<String> urls) {
+        boolean changed = false;
+
+        for(String url: urls) {
+            if(Thread.currentThread().isInterrupted())
+                break;
+
+            changed |= (update(url) == Result.UPDATED);
+        }
+
+        return changed;
+    }
+
+    public void forget(String url) {
+        mValidators.remove(url);
+    }
+
+    private Result doUpdate(String _url) throws IOException {
+        File dst = getScriptFile(_url);
+        if(dst.getName().isEmpty())
+            return Result.FAILED;
+
+        //noinspection ResultOfMethodCallIgnored
+        mScriptsDir.mkdirs();
+
+        URL url = new URL(_url);
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(TIMEOUT_MS);
+        con.setReadTimeout(TIMEOUT_MS);
+
+        // the validators are only valid if the script is still on disk
+        String[] validators = dst.exists() ? mValidators.get(_url) : null;
+        if(validators != null) {
+            if(validators[0] != null)
+                con.setRequestProperty("If-None-Match", validators[0]);
+            if(validators[1] != null)
+                con.setRequestProperty("If-Modified-Since", validators[1]);
+        }
+
+        int code = con.getResponseCode();
+
+        if(code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            Log.d(TAG, "Not modified: " + _url);
+
+            // drain the body, if any, to reuse the connection
+            drain(con);
+            return Result.NOT_MODIFIED;
+        } else if(code != HttpURLConnection.HTTP_OK) {
+            Log.w(TAG, "Fetching " + _url + " failed: HTTP " + code);
+            drain(con);
+            return Result.FAILED;
+        }
+
+        File tmp = new File(dst.getPath() + ".tmp");
+        long size = 0;
+
+        try(InputStream in = con.getInputStream();
+                OutputStream out = new FileOutputStream(tmp)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+
+            while((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        }
+
+        if(size == 0) {
+            Log.d(TAG, "Downloaded file from " + _url + " is empty");
+
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return Result.FAILED;
+        }
+
+        // Only replace the script if the download was successful
+        if(!tmp.renameTo(dst)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return Result.FAILED;
+        }
+
+        String etag = con.getHeaderField("ETag");
+        String lastModified = con.getHeaderField("Last-Modified");
+
+        if((etag != null) || (lastModified != null))
+            mValidators.put(_url, etag, lastModified);
+        else
+            mValidators.remove(_url);
+
+        Log.d(TAG, "Updated " + _url + " (" + size + " bytes)");
+        return Result.UPDATED;
+    }
+
+    private static void drain(HttpURLConnection con) {
+        try {
+            InputStream in = (con.getResponseCode() >= 400) ? con.getErrorStream() : con.getInputStream();
+            if(in == null)
+                return;
+
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                //noinspection StatementWithEmptyBody
+                while(in.read(buf) != -1) {}
+            } finally {
+                in.close();
+            }
+        } catch (IOException ignored) {
+            // the connection will not be reused
+        }
+    }
+}
@@ -31,9 +31,18 @@ import android.provider.MediaStore;
 import android.text.method.LinkMovementMethod;
 import android.widget.TextView;
 
+import com.chaquo.python.PyObject;
+import com.chaquo.python.Python;
+
 import java.util.List;
 
 public class Utils {
+    // the HOME of the Python environment, which contains the mitmproxy and Js Injector data
+    public static String getPythonHome() {
+        PyObject os = Python.getInstance().getModule("os");
+        return os.get("environ").callAttr("get", "HOME").toString();
+    }
+
     public static void showHintDialog(Context ctx, int id) {
         AlertDialog.Builder builder = new AlertDialog.Builder(ctx);
         builder.setTitle(R.string.hint);
@@ -19,41 +19,224 @@
 #
 
 # mitmdump --mode socks5 -p 8050 --flow-detail 0 -s js_injector.py
+import io
 import os
+import re
+import gzip
+import json
+import hashlib
+import tempfile
+import time
+import zlib
+import threading
+import html as html_lib
 from mitmproxy import http
+from mitmproxy.net.http.headers import parse_content_type
 from bs4 import BeautifulSoup
 from modules.js_userscript import JsUserscript
+from modules.url_matcher import UrlMatchIndex
 
 scripts_dir = os.path.join(os.environ["HOME"], "js_injector")
 
+# The scripts metadata, read by JsUserscriptsIndex.java without parsing the scripts
+index_path = os.path.join(os.environ["HOME"], "js_injector_index.json")
+INDEX_VERSION = 1
+
+# see pcapdroid.UNBUFFERED_METADATA
+UNBUFFERED_METADATA = "pcapdroid_unbuffered"
+
+# How the injected HTML is re-encoded, see MitmAPI.JS_ENCODING_*
+ENCODING_KEEP = 0
+ENCODING_FAST = 1
+ENCODING_IDENTITY = 2
+
+BODY_TAG_RE = re.compile(rb"<body(?:\s[^>]*)?>", re.IGNORECASE)
+META_CHARSET_RE = re.compile(rb"""<meta[^>]+charset=["']?([\w.:-]+)""", re.IGNORECASE)
+
+# Returns the charset of the HTML document
+def get_charset(response: http.Response, content: bytes) -> str:
+    content_type = parse_content_type(response.headers.get("content-type", ""))
+    if content_type and content_type[2].get("charset"):
+        return content_type[2]["charset"]
+
+    m = META_CHARSET_RE.search(content, 0, 1024)
+    if m:
+        return m.group(1).decode("ascii")
+    return "utf-8"
+
+# Sets the charset of the content-type, which takes precedence over the <meta> one
+def set_charset(response: http.Response, charset: str):
+    content_type = parse_content_type(response.headers.get("content-type", ""))
+    if not content_type:
+        response.headers["content-type"] = f"text/html; charset={charset}"
+        return
+
+    params = {k: v for k, v in content_type[2].items() if k.lower() != "charset"}
+    params["charset"] = charset
+    response.headers["content-type"] = f"{content_type[0]}/{content_type[1]}; " + \
+        "; ".join(f"{k}={v}" for k, v in params.items())
+
+# Returns the HTML markup of the scripts, in the same format produced by inject_scripts_soup
+def get_scripts_markup(scripts) -> str:
+    markup = []
+
+    for script in scripts:
+        # Inject dependencies before the script
+        for dep_js in script.require:
+            markup.append(f"<script type=\"text/javascript\" src=\"{html_lib.escape(dep_js)}\"></script>")
+
+        markup.append(f"<script type=\"application/javascript\">{script.content}</script>")
+
+    return "".join(markup)
+
+def _is_unbalanced(data: bytes, open_tag: bytes, close_tag: bytes) -> bool:
+    return data.count(open_tag) != data.count(close_tag)
+
+# Injects the scripts right after the <body> tag, without parsing the document.
+# Returns None if the position of the <body> tag cannot be safely determined, in which
+# case inject_scripts_soup should be used
+def inject_scripts_bytes(content: bytes, charset: str, scripts):
+    body_tag = None
+
+    for i, m in enumerate(BODY_TAG_RE.finditer(content)):
+        if i >= 4:
+            break
+
+        # skip the matches inside a comment or a script in the <head>
+        head = content[:m.start()].lower()
+        if not _is_unbalanced(head, b"<!--", b"-->") and not _is_unbalanced(head, b"<script", b"</script"):
+            body_tag = m
+            break
+
+    if not body_tag:
+        return None
+
+    try:
+        # the splicing below is only valid for ASCII-compatible encodings (e.g. not UTF-16)
+        if "<body>".encode(charset) != b"<body>":
+            return None
+
+        markup = get_scripts_markup(scripts).encode(charset)
+    except (LookupError, UnicodeError):
+        return None
+
+    return b"".join((content[:body_tag.end()], markup, content[body_tag.end():]))
+
+# Injects the scripts by parsing the document with BeautifulSoup. Returns None on failure
+def inject_scripts_soup(content: bytes, scripts):
+    html = BeautifulSoup(content, features="html.parser")
+    if not html.body:
+        return None
+
+    for script in reversed(scripts):
+        # Inject the scripts
+        tag = html.new_tag("script", type="application/javascript")
+        tag.insert(0, script.content)
+        html.body.insert(0, tag)
+
+        # Inject dependencies before the script
+        for dep_js in reversed(script.require):
+            tag = html.new_tag("script", type="text/javascript", src=dep_js)
+            html.body.insert(0, tag)
+
+    return str(html)
+
+# Compresses the data with the fastest level of the given content-encoding.
+# Returns None if the encoding is not supported
+def encode_fast(data: bytes, encoding: str) -> bytes:
+    if encoding in ("gzip", "x-gzip"):
+        return gzip.compress(data, compresslevel=1, mtime=0)
+    elif encoding == "deflate":
+        return zlib.compress(data, 1)
+    elif encoding == "br":
+        import brotli
+        return brotli.compress(data, quality=1)
+    elif encoding == "zstd":
+        import zstandard
+        return zstandard.ZstdCompressor(level=1).compress(data)
+    return None
+
+# mtime in milliseconds, as returned by the Java File.lastModified
+def set_file_info(script: JsUserscript, st: os.stat_result):
+    script.mtime = st.st_mtime_ns // 1000000
+    script.size = st.st_size
+
 class JsInjector:
-    def __init__(self):
-        self.scripts = []
-        self.needs_scripts_reload = True
+    # stream_factory(flow) returns the mitmproxy stream for the responses which are
+    # not going to be injected, or None to buffer them. If None, such responses are not streamed.
+    # on_buffered(flow) is called after disabling the streaming of a response to inject, which
+    # can enable it again
+    def __init__(self, stream_factory=None, encoding=ENCODING_KEEP, on_buffered=None):
+        self.stream_factory = stream_factory
+        self.on_buffered = on_buffered
+        self.encoding = encoding
+
+        # stats, see MitmAPI.STATS_JS_*
+        self.injections = 0
+        self.decode_time = 0.0
+        self.inject_time = 0.0
+        self.encode_time = 0.0
+        self.bytes_in = 0
+        self.bytes_out = 0
+
+        # (scripts, index), replaced atomically on reload
+        self.loaded = ([], UrlMatchIndex())
+
+        # fname -> ((mtime, size), JsUserscript), only accessed by the reload thread
+        self.cache = {}
+        self.reload_lock = threading.Lock()
+        self.reload_thread = None
+        self.reload_pending = False
+
         self.reload_scripts()
 
-    def response(self, flow: http.HTTPFlow):
-        #print(f"[{flow.response.status_code}] {flow.request.pretty_url}")
+    # Decides whether to inject as soon as the headers are received, so that only the
+    # matched HTML responses are buffered
+    def responseheaders(self, flow: http.HTTPFlow):
+        if flow.metadata.get(UNBUFFERED_METADATA):
+            # the PCAPdroid memory governor decided not to buffer the body, so it cannot be injected
+            return
 
-        if self.needs_scripts_reload:
-            self.reload_scripts()
+        scripts = self.get_matching_scripts(flow)
 
+        if scripts:
+            if flow.response.stream:
+                # a previous addon may have enabled the streaming, e.g. PCAPdroid with stream_bodies
+                flow.response.stream = False
+
+                if self.on_buffered:
+                    self.on_buffered(flow)
+                    if flow.response.stream:
+                        # too big to be buffered now
+                        return
+
+            flow.metadata["js_injector_matched"] = scripts
+        elif self.stream_factory and not flow.response.stream:
+            flow.response.stream = self.stream_factory(flow)
+
+    def get_matching_scripts(self, flow: http.HTTPFlow):
         # inject only for HTML resources
         constent_type = flow.response.headers.get("content-type", "")
         if constent_type and (not "text/html" in constent_type):
-            return
+            return None
 
         # https://docs.mitmproxy.org/stable/api/mitmproxy/http.html#HTTPFlow
         request =  flow.request
-        scripts = []
+        all_scripts, index = self.loaded
+        matching = index.lookup(request.scheme, request.pretty_host, request.path)
 
-        for s in self.scripts:
-            if s.matches(request.scheme, request.pretty_host, request.path):
-                scripts.append(s)
+        # preserve the scripts order
+        return [all_scripts[i] for i in sorted(matching)]
 
+    def response(self, flow: http.HTTPFlow):
+        #print(f"[{flow.response.status_code}] {flow.request.pretty_url}")
+
+        # matched in responseheaders
+        scripts = flow.metadata.pop("js_injector_matched", None)
         if not scripts:
             return
 
+        request = flow.request
         print(f"\"{[s.name for s in scripts]}\" match {request.pretty_url}")
 
         # IMPORTANT: delete these, otherwise it may upgrade the connection to QUIC
@@ -77,40 +260,136 @@ class JsInjector:
             print(f"[{flow.response.status_code}] Response is empty (cached?)")
             return
 
-        html = BeautifulSoup(flow.response.content, features="html.parser")
-        if not html.body:
-            print(f"Parsing HTML in {request.pretty_url} failed")
-            return
+        raw_size = len(flow.response.raw_content)
+        start = time.perf_counter()
+        content = flow.response.content
+        decoded = time.perf_counter()
 
-        for script in reversed(scripts):
-            # Inject the scripts
-            tag = html.new_tag("script", type="application/javascript")
-            tag.insert(0, script.content)
-            html.body.insert(0, tag)
+        charset = get_charset(flow.response, content)
+        injected = inject_scripts_bytes(content, charset, scripts)
 
-            # Inject dependencies before the script
-            for dep_js in reversed(script.require):
-                tag = html.new_tag("script", type="text/javascript", src=dep_js)
-                html.body.insert(0, tag)
+        if injected is None:
+            # slower, but handles any document which BeautifulSoup can parse
+            text = inject_scripts_soup(content, scripts)
+            if text is None:
+                print(f"Parsing HTML in {request.pretty_url} failed")
+                return
 
-            print(f"\"{script.name}\" script injected to {request.pretty_url}")
+            try:
+                injected = text.encode(charset, "surrogateescape")
+            except (LookupError, UnicodeError):
+                # unknown charset, or the document contains characters which it cannot represent
+                injected = text.encode("utf-8", "surrogateescape")
+                set_charset(flow.response, "utf-8")
 
-        flow.response.text = str(html)
+        modified = time.perf_counter()
+        self.set_content(flow.response, injected)
+        end = time.perf_counter()
+
+        self.injections += 1
+        self.decode_time += decoded - start
+        self.inject_time += modified - decoded
+        self.encode_time += end - modified
+        self.bytes_in += raw_size
+        self.bytes_out += len(flow.response.raw_content)
+
+        for script in scripts:
+            print(f"\"{script.name}\" script injected to {request.pretty_url}")
 
         scripts_log = ", ".join([script.name for script in scripts])
         scripts_log = (scripts_log[:24] + "...") if len(scripts_log) > 24 else scripts_log
         flow.js_injector_scripts = scripts_log
 
+    # Sets the injected content according to the configured encoding strategy.
+    # Returns the resulting content-encoding
+    def set_content(self, response: http.Response, content: bytes) -> str:
+        encoding = response.headers.get("content-encoding", "identity").lower()
+
+        if encoding != "identity":
+            if self.encoding == ENCODING_IDENTITY:
+                del response.headers["content-encoding"]
+                encoding = "identity"
+            elif self.encoding == ENCODING_FAST:
+                try:
+                    encoded = encode_fast(content, encoding)
+                except Exception as e:
+                    print(f"{encoding} encoding failed: {e}")
+                    encoded = None
+
+                if encoded is not None:
+                    response.raw_content = encoded
+                    if "transfer-encoding" not in response.headers:
+                        response.headers["content-length"] = str(len(encoded))
+                    return encoding
+
+        # NOTE: mitmproxy encodes with the default level of the content-encoding
+        response.content = content
+        return encoding
+
+    def get_stats(self) -> dict:
+        return {
+            "injections": self.injections,
+            "decode_time_ms": self.decode_time * 1000,
+            "inject_time_ms": self.inject_time * 1000,
+            "encode_time_ms": self.encode_time * 1000,
+            "bytes_in": self.bytes_in,
+            "bytes_out": self.bytes_out,
+        }
+
+    # Reloads the scripts in a background thread, so that the proxy is never blocked.
+    # Multiple requests while a reload is in progress are coalesced into a single reload.
+    def reload_scripts_async(self):
+        with self.reload_lock:
+            self.reload_pending = True
+
+            if not self.reload_thread:
+                self.reload_thread = threading.Thread(target=self._reload_worker, name="JsInjectorReload", daemon=True)
+                self.reload_thread.start()
+
+    def _reload_worker(self):
+        while True:
+            with self.reload_lock:
+                if not self.reload_pending:
+                    self.reload_thread = None
+                    return
+                self.reload_pending = False
+
+            try:
+                self.reload_scripts()
+            except Exception as e:
+                print(f"Reloading the scripts failed: {e}")
+
+    # Only re-parses the scripts which changed since the last reload
     def reload_scripts(self):
-        self.needs_scripts_reload = False
-        self.scripts = JsInjector.get_scripts()
+        parsed = []
+        scripts = JsInjector.get_scripts(self.cache, parsed)
+        index = JsInjector.build_index(scripts)
 
-        for script in self.scripts:
+        # the response hook sees either the old or the new scripts
+        self.loaded = (scripts, index)
+
+        for script in parsed:
             print(f"Loaded \"{script.name}\" v{script.version or ' unknown'}")
 
+    # Builds an index of the @match patterns of all the scripts, which maps to the script position
+    @staticmethod
+    def build_index(scripts) -> UrlMatchIndex:
+        index = UrlMatchIndex()
+
+        for i, script in enumerate(scripts):
+            for matcher in script.match:
+                index.add(matcher, i)
+
+        index.compile()
+        return index
+
+    # Returns the scripts in scripts_dir. If a cache dict is provided, the scripts whose
+    # (mtime, size) did not change are taken from it, and the newly parsed ones are
+    # appended to the parsed list
     @staticmethod
-    def get_scripts():
+    def get_scripts(cache=None, parsed=None):
         scripts = []
+        seen = set()
 
         os.makedirs(scripts_dir, exist_ok=True)
 
@@ -119,25 +398,94 @@ class JsInjector:
             if fname.endswith(".tmp"):
                 continue
 
+            st = None
+
             try:
                 fpath = os.path.join(scripts_dir, fname)
+                st = os.stat(fpath)
+                key = (st.st_mtime_ns, st.st_size)
+                seen.add(fname)
+
+                cached = cache.get(fname) if (cache is not None) else None
+                if cached and (cached[0] == key):
+                    scripts.append(cached[1])
+                    continue
 
-                with open(fpath, "r") as f:
-                    script = JsUserscript.parse(f)
-                    script.fname = fname
-                    if not script.name:
-                        script.name = os.path.splitext(fname)[0]
-                    scripts.append(script)
+                with open(fpath, "rb") as f:
+                    data = f.read()
+
+                script = JsUserscript.parse(io.StringIO(data.decode("utf-8")))
+                script.fname = fname
+                if not script.name:
+                    script.name = os.path.splitext(fname)[0]
+                script.sha256 = hashlib.sha256(data).hexdigest()
+                set_file_info(script, st)
+                scripts.append(script)
+
+                if cache is not None:
+                    cache[fname] = (key, script)
+                if parsed is not None:
+                    parsed.append(script)
             except Exception as e:
                 print(f"Loading {fname} failed")
                 print(e)
                 err_script = JsUserscript()
                 err_script.fname = err_script.name = fname
                 err_script.description = "Error: " + str(e)
+                if st:
+                    set_file_info(err_script, st)
                 scripts.append(err_script)
 
+        if cache is not None:
+            for fname in list(cache.keys()):
+                if fname not in seen:
+                    del cache[fname]
+
+        try:
+            JsInjector.update_index(scripts)
+        except Exception as e:
+            print(f"Updating the scripts index failed: {e}")
+
         return scripts
 
+    # Writes the scripts metadata to index_path, if changed
+    @staticmethod
+    def update_index(scripts):
+        index = {
+            "version": INDEX_VERSION,
+            "scripts": {s.fname: {
+                "name": s.name,
+                "author": s.author,
+                "version": s.version,
+                "description": s.description,
+                "match": [m.pattern for m in s.match],
+                "sha256": getattr(s, "sha256", ""),
+                "mtime": getattr(s, "mtime", 0),
+                "size": getattr(s, "size", -1),
+            } for s in scripts},
+        }
+
+        try:
+            with open(index_path, "r") as f:
+                if json.load(f) == index:
+                    return
+        except (OSError, ValueError):
+            pass
+
+        # atomic, as the index may be read from another process. The temporary file is unique,
+        # as the index may also be updated concurrently, e.g. by a reload and the userscripts module
+        fd, tmp_path = tempfile.mkstemp(dir=os.path.dirname(index_path) or ".", suffix=".tmp")
+        try:
+            with os.fdopen(fd, "w") as f:
+                json.dump(index, f)
+            os.replace(tmp_path, index_path)
+        except BaseException:
+            try:
+                os.unlink(tmp_path)
+            except OSError:
+                pass
+            raise
+
     @staticmethod
     def getScriptPath(script_fname: str) -> str:
         return os.path.join(scripts_dir, script_fname)
@@ -29,24 +29,42 @@ from mitmproxy.tools.main import mitmdump, process_options
 from mitmproxy.certs import CertStore, Cert
 from pcapdroid import PCAPdroid, AddonOpts
 from js_injector import JsInjector
+from modules.cert_cache import LeafCertCache
+from modules.tls_session_cache import TlsSessionCache, TLS_SESSIONS_OFF, clear_sessions
 from pathlib import Path
 import traceback
+import threading
 import socket
 import asyncio
+import time
 import sys
 import importlib
 
 master = None
 pcapdroid = None
 js_injector = None
+cert_cache = None
+tls_sessions = None
+user_addons = {}
+addons_dir = None
 running = False
+startup_trace = None
+prewarmed = False
+cert_lock = threading.Lock()
+
+# max time to wait for updateConfig to be applied by the event loop, in seconds
+UPDATE_CONFIG_TIMEOUT = 5
+
+# mitmproxy options (e.g. set via MitmConfig.additionalOptions) which modify the responses
+RESPONSE_MODIFYING_OPTIONS = ("modify_body", "modify_headers")
 
 orig_stdout = sys.stdout
 class StdOut:
     def isatty(self):
         return orig_stdout.isatty()
     def write(self, msg):
-        if pcapdroid:
+        # skip the bare newlines written by some libraries
+        if pcapdroid and not msg.isspace():
             pcapdroid.log(msg)
 
 orig_stderr = sys.stderr
@@ -54,7 +72,7 @@ class StdErr:
     def isatty(self):
         return orig_stderr.isatty()
     def write(self, msg):
-        if pcapdroid:
+        if pcapdroid and not msg.isspace():
             pcapdroid.log_warn(msg)
     def flush(self):
         pass
@@ -66,13 +84,16 @@ sys.stderr = StdErr()
 import builtins
 builtins.print = lambda x, *args, **kargs: sys.stdout.write(str(x))
 
+# Returns the list of the loaded addons
 def load_addon(modname, addons):
+    loaded = []
+
     try:
         existing_module = modname in sys.modules
 
         m = importlib.import_module(modname)
         if not m:
-            return
+            return loaded
 
         if existing_module:
             # reload the module if already loaded in a previous execution
@@ -81,10 +102,73 @@ def load_addon(modname, addons):
         if hasattr(m, "addons") and isinstance(m.addons, list):
             for addon in m.addons:
                 addons.add(addon)
+                loaded.append(addon)
     except Exception:
         sys.stderr.write("Failed to load addon \"" + modname + "\"")
         sys.stderr.write(traceback.format_exc())
 
+    return loaded
+
+# Loads the enabled user addons which are not loaded yet, and unloads the disabled ones
+def sync_user_addons(enabled_addons):
+    for modname in list(user_addons.keys()):
+        if modname not in enabled_addons:
+            print("Unloading user addon: " + modname)
+            for addon in user_addons.pop(modname):
+                master.addons.remove(addon)
+
+    if addons_dir and os.path.exists(addons_dir):
+        importlib.invalidate_caches()
+
+        for f in os.listdir(addons_dir):
+            if f.endswith(".py"):
+                fname = f[:-3]
+
+                if (fname in enabled_addons) and (fname not in user_addons):
+                    print("Loading user addon: " + f)
+                    user_addons[fname] = load_addon(fname, master.addons)
+
+    update_stream_factory()
+
+# Stream the responses which will not be injected, instead of buffering them.
+# Not possible with user addons or with the options which modify the response, as
+# they are applied in the response hook, when a streamed response was already forwarded.
+# The responses to inject, instead, are accounted by PCAPdroid when they stop being streamed
+def update_stream_factory():
+    if not js_injector:
+        return
+
+    can_stream = not any(user_addons.values()) and \
+        not any(getattr(master.options, opt, None) for opt in RESPONSE_MODIFYING_OPTIONS)
+    js_injector.stream_factory = pcapdroid.responseStream if can_stream else None
+    js_injector.on_buffered = pcapdroid.responseBuffered
+
+# Records the duration of the startup phases, see MitmAPI.STATS_STARTUP
+class StartupTrace:
+    def __init__(self):
+        self.start = self.last = time.perf_counter()
+        self.phases = {}
+
+        # a later prewarm does not affect this startup
+        self.prewarmed = prewarmed
+
+    # marks the end of a phase, which started at the end of the previous one
+    def mark(self, phase: str):
+        now = time.perf_counter()
+        self.phases[phase] = (now - self.last) * 1000
+        self.last = now
+
+    # mitmproxy hook, called after the proxy server is listening
+    def running(self):
+        self.mark("listen")
+        self.phases["total"] = (self.last - self.start) * 1000
+        print(f"Startup took {self.phases['total']:.0f} ms (prewarmed: {self.prewarmed})")
+
+    def get_stats(self) -> dict:
+        stats = {k + "_ms": v for k, v in self.phases.items()}
+        stats["prewarmed"] = self.prewarmed
+        return stats
+
 def jarray_to_set(arr):
     rv = set()
     for elem in arr:
@@ -93,23 +177,27 @@ def jarray_to_set(arr):
 
 # Entrypoint: runs mitmproxy
 # From mitmproxy.tools.main.run, without the signal handlers
-def run(fd: int, jenabled_addons, addons_home: str, dump_client: bool,
-        dump_keylog: bool, short_payload: bool, mitm_args: str):
+# conf is the MitmAPI.MitmConfig
+def run(fd: int, jenabled_addons, addons_home: str, dump_client: bool, conf, mitm_args: str):
     global master
     global running
-    global pcapdroid, js_injector
+    global pcapdroid, js_injector, cert_cache, tls_sessions, startup_trace, addons_dir
     running = True
+    addons_dir = addons_home
+    trace = startup_trace = StartupTrace()
 
     try:
         with socket.fromfd(fd, socket.AF_INET, socket.SOCK_STREAM) as sock:
             async def main():
                 global master
-                global pcapdroid, js_injector
+                global pcapdroid, js_injector, cert_cache, tls_sessions
                 opts = options.Options()
                 master = dump.DumpMaster(opts)
+                trace.mark("master")
 
                 # instantiate PCAPdroid early to send error log via the API
-                pcapdroid = PCAPdroid(sock, AddonOpts(dump_client, dump_keylog, short_payload))
+                pcapdroid = PCAPdroid(sock, AddonOpts.from_config(conf, dump_client))
+                trace.mark("pcapdroid")
 
                 if addons_home:
                     try:
@@ -123,22 +211,25 @@ def run(fd: int, jenabled_addons, addons_home: str, dump_client: bool,
                 # Load addons (order is important)
                 master.addons.add(pcapdroid)
 
+                cert_cache = LeafCertCache(MITMPROXY_CONF_DIR)
+                master.addons.add(cert_cache)
+
+                if conf.tlsSessionCache != TLS_SESSIONS_OFF:
+                    tls_sessions = TlsSessionCache(conf.tlsSessionCache)
+                    master.addons.add(tls_sessions)
+
                 # JsInjector addon
                 if "Js Injector" in enabled_addons:
-                    js_injector = JsInjector()
+                    js_injector = JsInjector(encoding=conf.jsInjectorEncoding)
                     master.addons.add(js_injector)
 
                 if os.path.exists(addons_home):
                     sys.path.append(addons_home)
-                    importlib.invalidate_caches()
+                sync_user_addons(enabled_addons)
 
-                    for f in os.listdir(addons_home):
-                        if f.endswith(".py"):
-                            fname = f[:-3]
-
-                            if fname in enabled_addons:
-                                print("Loading user addon: " + f)
-                                load_addon(fname, master.addons)
+                # last, to be notified after the proxy server is running
+                master.addons.add(trace)
+                trace.mark("addons")
 
                 print("mitmdump " + mitm_args)
                 parser = cmdline.mitmdump(opts)
@@ -148,7 +239,11 @@ def run(fd: int, jenabled_addons, addons_home: str, dump_client: bool,
                 # addon-registered --set option silently kept its default.
                 opts.set(*args.setoptions, defer=True)
                 process_options(parser, opts, args)
+                # after the options are parsed, see RESPONSE_MODIFYING_OPTIONS
+                update_stream_factory()
+                trace.mark("options")
                 checkCertificate()
+                trace.mark("certificate")
 
                 print("Running mitmdump...")
                 await master.run()
@@ -162,7 +257,12 @@ def run(fd: int, jenabled_addons, addons_home: str, dump_client: bool,
                     master.options.update(server=False)
                     await proxyserver.setup_servers()
 
-            asyncio.run(main())
+            try:
+                asyncio.run(main())
+            finally:
+                # flush the pending frames before the socket is closed
+                if pcapdroid:
+                    pcapdroid.close()
     except Exception:
         print(traceback.format_exc())
 
@@ -171,6 +271,10 @@ def run(fd: int, jenabled_addons, addons_home: str, dump_client: bool,
     running = False
     pcapdroid = None
     js_injector = None
+    cert_cache = None
+    tls_sessions = None
+    startup_trace = None
+    user_addons.clear()
 
 # Entrypoint: stops the running mitmproxy
 def stop():
@@ -185,12 +289,133 @@ def stop():
     if master:
         master.shutdown()
 
+# Entrypoint: applies the new MitmAPI.MitmConfig and enabled addons to the running
+# mitmproxy, without dropping the connections. See MitmAPI.MSG_UPDATE_CONFIG
+# The options which require a restart (e.g. the proxy port) are checked by MitmService.
+# Returns None on success, or an error message
+def updateConfig(conf, jenabled_addons) -> str:
+    m = master
+    if not m or not running or not pcapdroid:
+        return "mitmproxy is not running"
+
+    enabled_addons = jarray_to_set(jenabled_addons)
+    future = asyncio.run_coroutine_threadsafe(apply_config(conf, enabled_addons), m.event_loop)
+
+    try:
+        future.result(UPDATE_CONFIG_TIMEOUT)
+    except Exception as e:
+        future.cancel()
+        print(traceback.format_exc())
+        return str(e) or type(e).__name__
+
+    return None
+
+# runs in the event loop
+async def apply_config(conf, enabled_addons):
+    global js_injector, tls_sessions
+    start = time.perf_counter()
+
+    pcapdroid.set_opts(AddonOpts.from_config(conf, pcapdroid.opts.dump_client))
+
+    # the sessions established without verifying the server must not be resumed, see TlsSessionCache
+    if master.options.ssl_insecure != conf.sslInsecure:
+        clear_sessions()
+
+    master.options.update(
+        ssl_insecure=conf.sslInsecure,
+        # only used in SOCKS5 mode, see MitmService.getMitmproxyArgs
+        proxyauth=conf.proxyAuth if (conf.proxyAuth and not conf.transparentMode) else None)
+
+    if conf.tlsSessionCache == TLS_SESSIONS_OFF:
+        if tls_sessions:
+            master.addons.remove(tls_sessions)
+            tls_sessions = None
+    elif not tls_sessions:
+        tls_sessions = TlsSessionCache(conf.tlsSessionCache)
+        master.addons.add(tls_sessions)
+
+    if "Js Injector" in enabled_addons:
+        if js_injector:
+            js_injector.encoding = conf.jsInjectorEncoding
+        else:
+            # NOTE: added after the user addons
+            js_injector = JsInjector(encoding=conf.jsInjectorEncoding)
+            master.addons.add(js_injector)
+    elif js_injector:
+        master.addons.remove(js_injector)
+        js_injector = None
+
+    sync_user_addons(enabled_addons)
+    print(f"Configuration updated in {(time.perf_counter() - start) * 1000:.0f} ms")
+
+# Entrypoint: returns the runtime statistics, see MitmAPI.STATS_*
+# NOTE: called from the MitmService thread while mitmproxy is running
+def getStats() -> dict:
+    stats = {
+        "rss": get_rss(),
+    }
+
+    addon = pcapdroid
+    if addon:
+        stats.update(addon.get_stats())
+        stats["governor"] = addon.governor.get_stats()
+
+    cache = cert_cache
+    if cache:
+        stats["cert_cache"] = cache.get_stats()
+
+    sessions = tls_sessions
+    if sessions:
+        stats["tls_sessions"] = sessions.get_stats()
+
+    trace = startup_trace
+    if trace:
+        stats["startup"] = trace.get_stats()
+
+    injector = js_injector
+    if injector:
+        stats["js_injector"] = injector.get_stats()
+    return stats
+
+def get_rss() -> int:
+    try:
+        with open("/proc/self/statm", "r") as f:
+            return int(f.read().split()[1]) * os.sysconf("SC_PAGE_SIZE")
+    except Exception:
+        return 0
+
 # Entrypoint: logs a message to console/PCAPdroid
 def log(lvl: int, msg: str):
     if pcapdroid:
         pcapdroid.log(msg, lvl)
 
+# Entrypoint: performs the slow initialization steps of mitmproxy in advance (imports,
+# addons instantiation, CA certificate generation and loading), so that run() starts faster.
+# NOTE: the CertStore is not created here, as the tlsconfig addon always creates its own
+# Returns the time taken, in milliseconds
+def prewarm() -> float:
+    global prewarmed
+    start = time.perf_counter()
+
+    if not prewarmed:
+        # imports the modules of the default addons and of the proxy layers
+        from mitmproxy.addons import default_addons
+        from mitmproxy.proxy.layers import http, tls, websocket, tcp
+        default_addons()
+        cmdline.mitmdump(options.Options())
+
+        # also initializes the crypto backend, by loading the CA certificate
+        checkCertificate()
+        prewarmed = True
+
+    return (time.perf_counter() - start) * 1000
+
 def checkCertificate():
+    # NOTE: can be called concurrently by prewarm
+    with cert_lock:
+        _checkCertificate()
+
+def _checkCertificate():
     if os.path.exists(CA_CERT_PATH):
         try:
             with open(CA_CERT_PATH, "rb") as cert_file:
@@ -221,4 +446,4 @@ def getCAcert() -> str:
 # Entrypoint: reloads the Js Injector userscripts
 def reloadJsUserscripts():
     if js_injector:
-        js_injector.needs_scripts_reload = True
\ No newline at end of file
+        js_injector.reload_scripts_async()
\ No newline at end of file
@@ -9,9 +9,11 @@ class CallbackLogger(log.MitmLogHandler):
     def __init__(
             self,
             callback: Callable[[LogEntry], None],
+            threadsafe: bool = False,
     ):
         super().__init__()
         self.callback = callback
+        self.threadsafe = threadsafe
         self.event_loop = asyncio.get_running_loop()
         self.formatter = log.MitmFormatter(colorize=False)
 
@@ -20,4 +22,9 @@ class CallbackLogger(log.MitmLogHandler):
             msg=self.format(record),
             level=log.LOGGING_LEVELS_TO_LOGENTRY.get(record.levelno, "error"),
         )
-        self.event_loop.call_soon_threadsafe(self.callback, entry)
\ No newline at end of file
+
+        if self.threadsafe:
+            # avoids scheduling a call on the event loop for each record
+            self.callback(entry)
+        else:
+            self.event_loop.call_soon_threadsafe(self.callback, entry)
\ No newline at end of file
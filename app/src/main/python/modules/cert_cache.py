@@ -0,0 +1,208 @@
+import os
+import shutil
+import hashlib
+from collections import OrderedDict
+from concurrent.futures import ThreadPoolExecutor
+from mitmproxy import ctx
+from mitmproxy.certs import Cert, CertStore, CertStoreEntry
+
+# Maximum number of leaf certificates kept on disk
+MAX_DISK_CERTS = 1000
+
+# Maximum number of certificates loaded from disk kept in memory
+MAX_MEMORY_CERTS = 100
+
+"""
+Persists the leaf certificates generated by the mitmproxy CertStore, so that they
+survive a restart of the proxy.
+The certificates are stored under <confdir>/leaf-certs/<CA fingerprint>/, so that
+they are discarded when the CA changes. The least recently used ones are evicted
+when the cache exceeds MAX_DISK_CERTS. They are loaded lazily, on the first lookup.
+NOTE: the private key is not stored, as mitmproxy uses the CA key for all the leaf certificates
+"""
+class LeafCertCache:
+    def __init__(self, confdir: str):
+        self.base_dir = os.path.join(confdir, "leaf-certs")
+        self.certs_dir = None
+        self.certstore = None
+        self.memory = OrderedDict()
+        self.num_disk_certs = -1
+
+        # stats
+        self.hits = 0
+        self.misses = 0
+        self.stored = 0
+        self.evicted = 0
+
+        # a single thread, so that the disk counters and the eviction need no locking
+        self.executor = ThreadPoolExecutor(max_workers=1, thread_name_prefix="LeafCertCache")
+
+    # mitmproxy hook. The pending certificates are still stored
+    def done(self):
+        self.executor.shutdown(wait=False)
+
+    # mitmproxy hook, wraps the CertStore of the tlsconfig addon, which is re-created on confdir changes
+    def configure(self, updated):
+        tlsconfig = ctx.master.addons.get("tlsconfig")
+        certstore = getattr(tlsconfig, "certstore", None) if tlsconfig else None
+
+        if certstore and (certstore is not self.certstore):
+            self.wrap(certstore)
+
+    def wrap(self, certstore: CertStore):
+        ca_fp = certstore.default_ca.fingerprint().hex()[:16]
+        self.certs_dir = os.path.join(self.base_dir, ca_fp)
+        self.certstore = certstore
+        self.memory.clear()
+        self.num_disk_certs = -1
+
+        # certificates signed by a previous CA
+        if os.path.isdir(self.base_dir):
+            for d in os.listdir(self.base_dir):
+                if d != ca_fp:
+                    shutil.rmtree(os.path.join(self.base_dir, d), ignore_errors=True)
+
+        orig_get_cert = certstore.get_cert
+
+        # the signature depends on the mitmproxy version, e.g. mitmproxy 11 added crl_url
+        def get_cert(*args, **kwargs) -> CertStoreEntry:
+            return self.get_cert(orig_get_cert, args, kwargs)
+
+        certstore.get_cert = get_cert
+
+    def get_cert(self, orig_get_cert, args, kwargs) -> CertStoreEntry:
+        key = self.get_key(args, kwargs)
+
+        entry = self.memory.get(key)
+        if entry:
+            self.memory.move_to_end(key)
+            self.hits += 1
+            return entry
+
+        cert = self.load(key)
+        if cert:
+            self.hits += 1
+            entry = CertStoreEntry(cert, self.certstore.default_privatekey,
+                self.certstore.default_chain_file, self.certstore.default_chain_certs)
+            self.remember(key, entry)
+            return entry
+
+        # not cached, generate it
+        self.misses += 1
+        entry = orig_get_cert(*args, **kwargs)
+        self.remember(key, entry)
+
+        pem = entry.cert.to_pem()
+        try:
+            self.executor.submit(self.store, key, pem)
+        except RuntimeError:
+            # executor shut down
+            self.store(key, pem)
+
+        return entry
+
+    # all the arguments of get_cert: commonname, sans, organization, crl_url (depending on the version)
+    @staticmethod
+    def get_key(args, kwargs) -> str:
+        parts = []
+
+        for arg in list(args) + [kwargs[k] for k in sorted(kwargs)]:
+            if isinstance(arg, (list, tuple, set, frozenset)):
+                # the SANs may be x509.GeneralName or str, depending on the mitmproxy version
+                parts.append(",".join(sorted(str(v) for v in arg)))
+            else:
+                parts.append(str(arg))
+
+        parts += sorted(kwargs)
+        return hashlib.sha256("\0".join(parts).encode("utf-8", "surrogateescape")).hexdigest()
+
+    def remember(self, key: str, entry: CertStoreEntry):
+        self.memory[key] = entry
+        self.memory.move_to_end(key)
+
+        if len(self.memory) > MAX_MEMORY_CERTS:
+            self.memory.popitem(last=False)
+
+    def load(self, key: str):
+        path = os.path.join(self.certs_dir, key + ".pem")
+
+        try:
+            with open(path, "rb") as f:
+                cert = Cert.from_pem(f.read())
+        except FileNotFoundError:
+            return None
+        except Exception as e:
+            print(f"Invalid cached certificate: {e}")
+            self.remove(path)
+            return None
+
+        if cert.has_expired():
+            self.remove(path)
+            return None
+
+        # the mtime tracks the last use, for the LRU eviction
+        try:
+            os.utime(path)
+        except OSError:
+            pass
+
+        return cert
+
+    # NOTE: called from the executor thread, the only one which writes to the certs_dir
+    def store(self, key: str, pem: bytes):
+        certs_dir = self.certs_dir
+        path = os.path.join(certs_dir, key + ".pem")
+        tmp_path = path + ".tmp"
+
+        try:
+            os.makedirs(certs_dir, exist_ok=True)
+
+            with open(tmp_path, "wb") as f:
+                f.write(pem)
+            os.replace(tmp_path, path)
+            self.stored += 1
+
+            if self.num_disk_certs < 0:
+                self.num_disk_certs = len(os.listdir(certs_dir))
+            else:
+                self.num_disk_certs += 1
+
+            if self.num_disk_certs > MAX_DISK_CERTS:
+                self.evict(certs_dir)
+        except OSError as e:
+            print(f"Could not cache the certificate: {e}")
+
+    # removes the least recently used certificates, down to 90% of MAX_DISK_CERTS
+    def evict(self, certs_dir: str):
+        entries = []
+
+        for fname in os.listdir(certs_dir):
+            path = os.path.join(certs_dir, fname)
+            try:
+                entries.append((os.stat(path).st_mtime, path))
+            except OSError:
+                pass
+
+        entries.sort()
+        to_remove = len(entries) - (MAX_DISK_CERTS * 9 // 10)
+
+        for _, path in entries[:max(to_remove, 0)]:
+            self.remove(path)
+            self.evicted += 1
+
+        self.num_disk_certs = len(entries) - max(to_remove, 0)
+
+    @staticmethod
+    def remove(path: str):
+        try:
+            os.remove(path)
+        except OSError:
+            pass
+
+    def get_stats(self) -> dict:
+        return {
+            "hits": self.hits,
+            "misses": self.misses,
+            "stored": self.stored,
+            "evicted": self.evicted,
+        }
@@ -0,0 +1,66 @@
+import socket
+import struct
+import threading
+
+# See MitmAPI.CTRL_*
+CTRL_BYPASS_HOST = 1
+CTRL_UNBYPASS_HOST = 2
+CTRL_STOP_PAYLOAD = 3
+CTRL_RESUME_PAYLOAD = 4
+
+# Control frame header: u8 type | u8 flags (reserved) | u16 payload length. See MitmAPI.CTRL_HEADER_SIZE
+CTRL_HEADER = struct.Struct("<BBH")
+
+# CTRL_STOP_PAYLOAD/CTRL_RESUME_PAYLOAD payload: u32 connection ID (or port)
+CTRL_CONN_PAYLOAD = struct.Struct("<I")
+
+"""
+Reads the control frames sent by PCAPdroid on the export socket, which is full-duplex.
+on_frame(type, payload) is called from this thread for each frame.
+The thread stops when the socket is closed, or shut down for reading, see close.
+"""
+class ControlReader(threading.Thread):
+    def __init__(self, sock, on_frame):
+        super().__init__(name="ControlReader", daemon=True)
+        self.sock = sock
+        self.on_frame = on_frame
+
+        # stats
+        self.frames = 0
+
+    def run(self):
+        try:
+            while True:
+                header = self.recv_exact(CTRL_HEADER.size)
+                if header is None:
+                    break
+
+                ctrl_type, _flags, length = CTRL_HEADER.unpack(header)
+                payload = self.recv_exact(length) if length else b""
+                if payload is None:
+                    break
+
+                self.frames += 1
+                self.on_frame(ctrl_type, payload)
+        except (OSError, RuntimeError):
+            # socket closed, or event loop stopped
+            pass
+
+    # Returns None on EOF
+    def recv_exact(self, size: int):
+        buf = bytearray()
+
+        while len(buf) < size:
+            chunk = self.sock.recv(size - len(buf))
+            if not chunk:
+                return None
+            buf += chunk
+
+        return bytes(buf)
+
+    # Stops the thread. The socket can still be used for writing
+    def close(self):
+        try:
+            self.sock.shutdown(socket.SHUT_RD)
+        except OSError:
+            pass
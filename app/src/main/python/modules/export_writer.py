@@ -0,0 +1,201 @@
+import socket
+import threading
+import time
+
+# Maximum number of bytes waiting to be written to the socket
+MAX_QUEUE_BYTES = 4 * 1024 * 1024
+
+# Maximum number of bytes queued by the non-blocking writes of droppable frames, see write
+HARD_MAX_QUEUE_BYTES = 4 * MAX_QUEUE_BYTES
+
+# Pending frames are flushed when they reach FLUSH_SIZE bytes or when the
+# oldest one has been waiting for FLUSH_INTERVAL seconds
+FLUSH_SIZE = 64 * 1024
+FLUSH_INTERVAL = 0.005
+
+# Maximum time to wait for the pending frames to be written on close
+CLOSE_TIMEOUT = 2
+
+"""
+Writes the frames to the PCAPdroid socket from a dedicated thread, so that a
+slow reader does not stall the mitmproxy event loop.
+Frames are stored into a bounded queue and coalesced into large writes. When the
+queue is full, write() blocks until the writer thread makes some room. The
+non-blocking writes can exceed the limit, up to the hard limit for the droppable frames.
+"""
+class ExportWriter(threading.Thread):
+    def __init__(self, sock, on_error, max_queue_bytes=MAX_QUEUE_BYTES,
+            hard_max_queue_bytes=HARD_MAX_QUEUE_BYTES,
+            flush_size=FLUSH_SIZE, flush_interval=FLUSH_INTERVAL):
+        super().__init__(name="ExportWriter", daemon=True)
+        self.sock = sock
+        self.on_error = on_error
+        self.max_queue_bytes = max_queue_bytes
+        self.hard_max_queue_bytes = max(hard_max_queue_bytes, max_queue_bytes)
+        self.flush_size = flush_size
+        self.flush_interval = flush_interval
+
+        self.lock = threading.Lock()
+        self.has_data = threading.Condition(self.lock)
+        self.has_space = threading.Condition(self.lock)
+        self.chunks = []
+        self.queue_frames = 0
+        self.queue_bytes = 0
+        self.first_enqueued = 0
+        self.closing = False
+        self.error = None
+
+        # stats
+        self.queue_bytes_hwm = 0
+        self.frames_written = 0
+        self.bytes_written = 0
+        self.flushes = 0
+        self.write_time = 0.0
+        self.blocked_time = 0.0
+        self.overflow_frames = 0
+        self.overflow_bytes = 0
+        self.flush_latency_max = 0.0
+        self.flush_latency_total = 0.0
+
+    # True if a frame of the given size does not fit into the queue
+    def is_congested(self, size: int) -> bool:
+        return (self.queue_bytes > 0) and (self.queue_bytes + size > self.max_queue_bytes)
+
+    # Queues a frame. If block is False, the frame is queued even when the queue is full,
+    # unless it is droppable and the queue exceeds hard_max_queue_bytes: in such case the
+    # frame is discarded and counted in overflow_frames.
+    # Returns False if the frame was not queued: discarded, or the writer is not running anymore
+    def write(self, header: bytes, payload: bytes, block=True, droppable=False) -> bool:
+        size = len(header) + len(payload)
+
+        with self.lock:
+            if block and self.queue_bytes and (self.queue_bytes + size > self.max_queue_bytes):
+                start = time.monotonic()
+
+                # NOTE: a frame bigger than max_queue_bytes is accepted when the queue is empty
+                while self.queue_bytes and (self.queue_bytes + size > self.max_queue_bytes) \
+                        and not self.error and not self.closing:
+                    self.has_space.wait()
+
+                self.blocked_time += time.monotonic() - start
+
+            if self.error or self.closing:
+                return False
+
+            if droppable and not block and self.queue_bytes and \
+                    (self.queue_bytes + size > self.hard_max_queue_bytes):
+                self.overflow_frames += 1
+                self.overflow_bytes += size
+                return False
+
+            self.chunks.append(header)
+            if payload:
+                self.chunks.append(payload)
+            self.queue_frames += 1
+            self.queue_bytes += size
+            self.queue_bytes_hwm = max(self.queue_bytes_hwm, self.queue_bytes)
+
+            if self.queue_frames == 1:
+                self.first_enqueued = time.monotonic()
+                self.has_data.notify()
+            elif self.queue_bytes >= self.flush_size:
+                self.has_data.notify()
+
+        return True
+
+    def run(self):
+        while True:
+            with self.lock:
+                while not self.queue_frames and not self.closing:
+                    self.has_data.wait()
+
+                if not self.queue_frames:
+                    # closing
+                    return
+
+                # coalesce: wait for more frames, up to flush_interval
+                deadline = self.first_enqueued + self.flush_interval
+                while (self.queue_bytes < self.flush_size) and not self.closing:
+                    remaining = deadline - time.monotonic()
+                    if remaining <= 0:
+                        break
+                    self.has_data.wait(remaining)
+
+                chunks = self.chunks
+                num_frames = self.queue_frames
+                num_bytes = self.queue_bytes
+                first_enqueued = self.first_enqueued
+
+                self.chunks = []
+                self.queue_frames = 0
+                self.queue_bytes = 0
+                self.has_space.notify_all()
+
+            start = time.monotonic()
+
+            try:
+                self.sock.sendall(b"".join(chunks))
+            except OSError as e:
+                with self.lock:
+                    self.error = e
+                    self.chunks = []
+                    self.queue_frames = 0
+                    self.queue_bytes = 0
+                    self.has_space.notify_all()
+                    closing = self.closing
+
+                # on close, the error is caused by the shutdown, see close
+                if not closing:
+                    self.on_error(e)
+                return
+
+            end = time.monotonic()
+            latency = end - first_enqueued
+
+            self.frames_written += num_frames
+            self.bytes_written += num_bytes
+            self.flushes += 1
+            self.write_time += end - start
+            self.flush_latency_total += latency
+            self.flush_latency_max = max(self.flush_latency_max, latency)
+
+    # Flushes the pending frames and stops the writer thread. If PCAPdroid is not reading,
+    # the pending frames are discarded after the timeout, by shutting down the socket.
+    # Returns False in such case
+    def close(self, timeout=CLOSE_TIMEOUT) -> bool:
+        with self.lock:
+            self.closing = True
+            self.has_data.notify()
+            self.has_space.notify_all()
+
+        if not self.is_alive():
+            return True
+
+        self.join(timeout)
+        if not self.is_alive():
+            return True
+
+        # unblocks the sendall
+        try:
+            self.sock.shutdown(socket.SHUT_WR)
+        except OSError:
+            pass
+
+        self.join(timeout)
+        return False
+
+    def get_stats(self) -> dict:
+        return {
+            "queue_frames": self.queue_frames,
+            "queue_bytes": self.queue_bytes,
+            "queue_bytes_hwm": self.queue_bytes_hwm,
+            "frames_written": self.frames_written,
+            "bytes_written": self.bytes_written,
+            "flushes": self.flushes,
+            "write_time_ms": int(self.write_time * 1000),
+            "blocked_time_ms": int(self.blocked_time * 1000),
+            "overflow_frames": self.overflow_frames,
+            "overflow_bytes": self.overflow_bytes,
+            "flush_latency_max_ms": self.flush_latency_max * 1000,
+            "flush_latency_avg_ms": (self.flush_latency_total * 1000 / self.flushes) if self.flushes else 0,
+        }
@@ -0,0 +1,162 @@
+import re
+import threading
+import time
+
+# android.util.Log.WARN
+LOG_WARN = 5
+
+# The lines are written in batches, collected over this interval
+FLUSH_INTERVAL = 0.1
+
+# Maximum number of lines waiting to be written, the exceeding ones are dropped
+MAX_PENDING_LINES = 1000
+
+# Consecutive lines with the same level are coalesced into an entry of up to MAX_ENTRY_LINES
+MAX_ENTRY_LINES = 50
+
+# Per-key token bucket: up to RATE_LIMIT_BURST lines, refilled at RATE_LIMIT_PER_SEC
+RATE_LIMIT_BURST = 20
+RATE_LIMIT_PER_SEC = 2
+MAX_KEYS = 512
+
+# numbers (e.g. ports, addresses, ids) are not part of the rate limiting key
+KEY_NUMBERS_RE = re.compile(r"\d+")
+KEY_LENGTH = 64
+
+"""
+Buffers the log lines and writes them from a dedicated thread, so that a burst of
+log lines does not stall the event loop nor flood the PCAPdroid socket.
+Lines below the min_level are discarded, and lines with the same key (by default, the
+beginning of the message) are rate limited. sink(level, msg) is called with the
+coalesced multi-line entries.
+"""
+class LogBuffer(threading.Thread):
+    def __init__(self, sink, min_level):
+        super().__init__(name="LogBuffer", daemon=True)
+        self.sink = sink
+        self.min_level = min_level
+
+        self.lock = threading.Lock()
+        self.has_data = threading.Condition(self.lock)
+        self.pending = []
+        self.buckets = {}
+        self.closing = False
+
+        # stats
+        self.lines = 0
+        self.dropped = 0
+        self.filtered = 0
+        self.entries = 0
+        self.dropped_reported = 0
+
+    # Thread safe
+    def add(self, lvl: int, msg: str, key: str = None):
+        if lvl < self.min_level:
+            with self.lock:
+                self.filtered += 1
+            return
+
+        msg = msg.rstrip()
+        if not msg:
+            return
+
+        if key is None:
+            key = KEY_NUMBERS_RE.sub("#", msg[:KEY_LENGTH])
+        now = time.monotonic()
+
+        with self.lock:
+            if self.closing:
+                return
+
+            if (len(self.pending) >= MAX_PENDING_LINES) or not self._take_token(key, now):
+                self.dropped += 1
+                return
+
+            self.pending.append((lvl, msg))
+            self.lines += 1
+
+            if len(self.pending) == 1:
+                self.has_data.notify()
+
+    def _take_token(self, key: str, now: float) -> bool:
+        bucket = self.buckets.get(key)
+
+        if bucket is None:
+            if len(self.buckets) >= MAX_KEYS:
+                self.buckets.clear()
+            bucket = self.buckets[key] = [RATE_LIMIT_BURST, now]
+        else:
+            bucket[0] = min(RATE_LIMIT_BURST, bucket[0] + (now - bucket[1]) * RATE_LIMIT_PER_SEC)
+            bucket[1] = now
+
+        if bucket[0] < 1:
+            return False
+
+        bucket[0] -= 1
+        return True
+
+    def run(self):
+        while True:
+            with self.lock:
+                while not self.pending and not self.closing:
+                    self.has_data.wait()
+
+                if self.closing:
+                    break
+
+            # collect the lines of a burst into a single batch
+            time.sleep(FLUSH_INTERVAL)
+            self.flush()
+
+        self.flush()
+
+    def flush(self):
+        with self.lock:
+            pending = self.pending
+            self.pending = []
+            dropped = self.dropped - self.dropped_reported
+            self.dropped_reported = self.dropped
+
+        entry = []
+        entry_lvl = None
+
+        for lvl, msg in pending:
+            if entry and ((lvl != entry_lvl) or (len(entry) >= MAX_ENTRY_LINES)):
+                self._write(entry_lvl, "\n".join(entry))
+                entry = []
+
+            entry_lvl = lvl
+            entry.append(msg)
+
+        if entry:
+            self._write(entry_lvl, "\n".join(entry))
+
+        if dropped:
+            self._write(LOG_WARN, f"{dropped} log lines dropped")
+
+    def _write(self, lvl: int, msg: str):
+        self.entries += 1
+
+        try:
+            self.sink(lvl, msg)
+        except Exception:
+            pass
+
+    # Writes the pending lines and stops the thread
+    def close(self, timeout=None):
+        with self.lock:
+            self.closing = True
+            self.has_data.notify()
+
+        if self.is_alive():
+            self.join(timeout)
+        else:
+            self.flush()
+
+    def get_stats(self) -> dict:
+        return {
+            "log_lines": self.lines,
+            "log_entries": self.entries,
+            "log_dropped": self.dropped,
+            "log_filtered": self.filtered,
+        }
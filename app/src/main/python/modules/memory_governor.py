@@ -0,0 +1,108 @@
+# See MitmAPI.GOVERNOR_*
+GOVERNOR_NORMAL = 0
+GOVERNOR_HIGH = 1
+GOVERNOR_CRITICAL = 2
+
+# fraction of the budget above which GOVERNOR_HIGH is entered. GOVERNOR_CRITICAL is entered above the budget
+HIGH_THRESHOLD = 0.75
+
+# the level is lowered only when the buffered bytes are below its threshold by this fraction of the budget
+HYSTERESIS = 0.1
+
+# bodies of at least this size (or of unknown size) are not buffered, by level
+MAX_BUFFERED_BODY_SIZE = {
+    GOVERNOR_HIGH: 256 * 1024,
+    GOVERNOR_CRITICAL: 16 * 1024,
+}
+
+"""
+Tracks the bytes buffered by the proxy across all the in-flight flows (the HTTP bodies
+and the retained TCP/WebSocket messages) against a memory budget. When the budget is
+being exhausted, the new large bodies should not be buffered, see should_buffer.
+on_level_changed(level, buffered, budget) is called when the level changes.
+A budget <= 0 disables the governor, the buffered bytes are still tracked.
+"""
+class MemoryGovernor:
+    def __init__(self, budget: int, on_level_changed):
+        self.budget = budget
+        self.on_level_changed = on_level_changed
+        self.level = GOVERNOR_NORMAL
+
+        # key -> buffered bytes, e.g. (flow id, is request)
+        self.buffered = {}
+        self.total = 0
+
+        # stats
+        self.total_hwm = 0
+        self.level_hwm = GOVERNOR_NORMAL
+        self.level_changes = 0
+        self.unbuffered_bodies = 0
+
+    def set_budget(self, budget: int):
+        self.budget = budget
+        self._check_level()
+
+    # Sets the bytes buffered for the given key, 0 to release them
+    def update(self, key, size: int):
+        old = self.buffered.pop(key, 0)
+        if size > 0:
+            self.buffered[key] = size
+
+        self.total += size - old
+        if self.total > self.total_hwm:
+            self.total_hwm = self.total
+
+        if size != old:
+            self._check_level()
+
+    def release(self, key):
+        if key in self.buffered:
+            self.update(key, 0)
+
+    # Returns True if a new body of the given size (None if unknown) can be buffered
+    def should_buffer(self, size) -> bool:
+        max_size = MAX_BUFFERED_BODY_SIZE.get(self.level)
+        if max_size is None:
+            return True
+
+        if (size is None) or (size >= max_size):
+            self.unbuffered_bodies += 1
+            return False
+        return True
+
+    def _get_level(self, total: float) -> int:
+        if self.budget <= 0:
+            return GOVERNOR_NORMAL
+        if total >= self.budget:
+            return GOVERNOR_CRITICAL
+        if total >= self.budget * HIGH_THRESHOLD:
+            return GOVERNOR_HIGH
+        return GOVERNOR_NORMAL
+
+    def _check_level(self):
+        level = self._get_level(self.total)
+
+        if (level < self.level) and (self.budget > 0):
+            # avoid flapping around the thresholds
+            level = max(level, self._get_level(self.total + self.budget * HYSTERESIS))
+
+        if level == self.level:
+            return
+
+        self.level = level
+        self.level_changes += 1
+        if level > self.level_hwm:
+            self.level_hwm = level
+
+        self.on_level_changed(level, self.total, self.budget)
+
+    def get_stats(self) -> dict:
+        return {
+            "level": self.level,
+            "level_hwm": self.level_hwm,
+            "level_changes": self.level_changes,
+            "budget": self.budget,
+            "buffered_bytes": self.total,
+            "buffered_bytes_hwm": self.total_hwm,
+            "unbuffered_bodies": self.unbuffered_bodies,
+        }
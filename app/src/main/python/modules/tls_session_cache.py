@@ -0,0 +1,178 @@
+import time
+from collections import OrderedDict
+from mitmproxy import tls, ctx
+from mitmproxy.proxy import server_hooks
+
+# NOTE: pyOpenSSL does not expose SSL_session_reused and SSL_SESSION_is_resumable. Without
+# its private bindings, the resumption of an offered session is reported as unknown
+try:
+    from OpenSSL._util import lib as _ssl_lib
+except ImportError:
+    _ssl_lib = None
+
+# Maximum number of cached sessions
+MAX_SESSIONS = 256
+
+# Sessions older than this are not offered to the server
+SESSION_TTL = 2 * 3600
+
+# See MitmAPI.TLS_SESSIONS_*
+TLS_SESSIONS_OFF = 0
+TLS_SESSIONS_ON = 1
+TLS_SESSIONS_KEEP = 2
+
+# The upstream verification options. OpenSSL does not verify the server again on resumption,
+# so a session established with a different verification must not be resumed
+VERIFY_OPTIONS = ("ssl_insecure", "client_certs", "ssl_verify_upstream_trusted_ca",
+    "ssl_verify_upstream_trusted_confdir")
+
+# (host, port, sni, alpn, verification options) -> (timestamp, OpenSSL.SSL.Session, server certificate chain)
+# Module level, to be shared with the next proxy session with TLS_SESSIONS_KEEP
+_sessions = OrderedDict()
+
+# Removes all the cached sessions, e.g. when the upstream verification changes
+def clear_sessions():
+    _sessions.clear()
+
+"""
+Caches the upstream TLS sessions, to resume them in the following connections to
+the same server, saving a round trip and the key exchange.
+NOTE: pyOpenSSL cannot serialize the sessions, so they cannot be persisted to disk
+"""
+class TlsSessionCache:
+    def __init__(self, mode: int):
+        if mode != TLS_SESSIONS_KEEP:
+            _sessions.clear()
+
+        # server connection id -> (key, ssl_conn, certificate chain), to save the TLS 1.3 tickets
+        # received after the handshake
+        self.established = {}
+
+        # server connection id -> cached certificate chain, for the handshakes which offered a session
+        self.offered_conns = {}
+
+        # stats
+        self.offered = 0
+        self.resumed = 0
+        self.full = 0
+        self.unknown = 0
+        self.resumed_time = 0.0
+        self.full_time = 0.0
+
+    @staticmethod
+    def get_key(data: tls.TlsData):
+        server = data.context.server
+        address = server.address or ("", 0)
+        verify = tuple(getattr(ctx.options, opt, None) for opt in VERIFY_OPTIONS)
+        return (address[0], address[1], server.sni, tuple(server.alpn_offers or ()), verify)
+
+    # mitmproxy hook, called after the tlsconfig addon created the connection
+    def tls_start_server(self, data: tls.TlsData):
+        if not data.ssl_conn:
+            return
+
+        key = self.get_key(data)
+        cached = _sessions.get(key)
+        if not cached:
+            return
+
+        tstamp, session, certificate_list = cached
+        if time.time() - tstamp > SESSION_TTL:
+            del _sessions[key]
+            return
+
+        # the upstream certificate, mirrored into the generated one, would not be available
+        if not certificate_list and ctx.options.upstream_cert:
+            return
+
+        try:
+            data.ssl_conn.set_session(session)
+            self.offered += 1
+            self.offered_conns[data.conn.id] = certificate_list
+        except Exception:
+            del _sessions[key]
+
+    # mitmproxy hook
+    def tls_established_server(self, data: tls.TlsData):
+        conn = data.conn
+        offered = conn.id in self.offered_conns
+        cached_certs = self.offered_conns.pop(conn.id, None)
+
+        # a session which was not offered cannot be resumed
+        reused = self.session_reused(data.ssl_conn) if offered else False
+
+        # on resumption, the server does not send its certificate. Restore the one of the
+        # full handshake, e.g. for the upstream_cert option and the exported connection info
+        if (reused is not False) and not conn.certificate_list and cached_certs:
+            conn.certificate_list = cached_certs
+
+        if reused is None:
+            self.unknown += 1
+        elif conn.timestamp_tls_setup and conn.timestamp_tcp_setup:
+            handshake = conn.timestamp_tls_setup - conn.timestamp_tcp_setup
+
+            if reused:
+                self.resumed += 1
+                self.resumed_time += handshake
+            else:
+                self.full += 1
+                self.full_time += handshake
+
+        key = self.get_key(data)
+        certificate_list = list(conn.certificate_list or ())
+        self.established[conn.id] = (key, data.ssl_conn, certificate_list)
+        self.save(key, data.ssl_conn, certificate_list)
+
+    # mitmproxy hook
+    def server_disconnected(self, data: server_hooks.ServerConnectionHookData):
+        self.offered_conns.pop(data.server.id, None)
+        item = self.established.pop(data.server.id, None)
+        if item:
+            # with TLS 1.3, the session ticket is only available after the handshake
+            self.save(*item)
+
+    @staticmethod
+    def save(key, ssl_conn, certificate_list):
+        try:
+            session = ssl_conn.get_session()
+        except Exception:
+            return
+
+        if not session:
+            return
+
+        # without the check, a non-resumable session only costs a full handshake
+        raw_session = getattr(session, "_session", None)
+        if _ssl_lib and (raw_session is not None) and hasattr(_ssl_lib, "SSL_SESSION_is_resumable") \
+                and not _ssl_lib.SSL_SESSION_is_resumable(raw_session):
+            return
+
+        _sessions[key] = (time.time(), session, certificate_list)
+        _sessions.move_to_end(key)
+
+        while len(_sessions) > MAX_SESSIONS:
+            _sessions.popitem(last=False)
+
+    # Returns None if unknown
+    @staticmethod
+    def session_reused(ssl_conn):
+        # not available in the current pyOpenSSL, but cheap to check
+        public = getattr(ssl_conn, "session_reused", None)
+        if callable(public):
+            return bool(public())
+
+        raw_conn = getattr(ssl_conn, "_ssl", None)
+        if _ssl_lib and (raw_conn is not None) and hasattr(_ssl_lib, "SSL_session_reused"):
+            return bool(_ssl_lib.SSL_session_reused(raw_conn))
+        return None
+
+    def get_stats(self) -> dict:
+        return {
+            "sessions": len(_sessions),
+            "offered": self.offered,
+            "resumed": self.resumed,
+            "full": self.full,
+            "unknown": self.unknown,
+            "resumed_handshake_avg_ms": (self.resumed_time * 1000 / self.resumed) if self.resumed else 0,
+            "full_handshake_avg_ms": (self.full_time * 1000 / self.full) if self.full else 0,
+        }
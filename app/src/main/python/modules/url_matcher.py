@@ -7,6 +7,8 @@ class UrlMatcher:
         self.https_only = False
         self.domain = None
         self.path = None
+        self.domain_pattern = None
+        self.path_pattern = None
         self.parse()
 
     def __repr__(self):
@@ -29,16 +31,23 @@ class UrlMatcher:
         # domain and path
         idx = expr.find("/")
         if idx > 0:
-            self.domain = self.to_regex(expr[:idx])
-            self.path = self.to_regex(expr[idx+1:])
+            self.domain_pattern = expr[:idx]
+            self.path_pattern = expr[idx+1:]
+            self.path = self.to_regex(self.path_pattern)
         else:
-            self.domain = self.to_regex(expr)
+            self.domain_pattern = expr
 
-    def to_regex(self, expr):
+        if self.domain_pattern:
+            self.domain = self.to_regex(self.domain_pattern)
+
+    @staticmethod
+    def to_regex_str(expr, wildcard=".*"):
         # we only support "*" for now
         r = re.escape(expr)
-        r = r.replace("\\*", ".*")
-        return re.compile(r)
+        return r.replace("\\*", wildcard)
+
+    def to_regex(self, expr):
+        return re.compile(self.to_regex_str(expr))
 
     def is_valid(self):
         return self.domain
@@ -56,8 +65,8 @@ class UrlMatcher:
         if self.https_only and (http_or_https == "http"):
             return False
 
-        # domain
-        if not self.domain.match(domain):
+        # domain, must match the whole host
+        if not self.domain.fullmatch(domain):
             return False
 
         # path
@@ -66,6 +75,144 @@ class UrlMatcher:
 
         return True
 
+# Matches an URL against many UrlMatcher at once, returning the values associated
+# to the matching patterns (e.g. the indexes of the Js Injector scripts).
+# Exact hosts and "*.domain" patterns are stored into a reversed-domain trie, so
+# that only the patterns which apply to the host labels are evaluated. Within a trie
+# node, all the path patterns are combined into a single regex.
+# Other host patterns (e.g. "example.*") are matched together with the path.
+class UrlMatchIndex:
+    def __init__(self):
+        self.root = _TrieNode()
+        self.generic = _Bucket()
+
+    def add(self, matcher: UrlMatcher, value):
+        if not matcher.is_valid():
+            return
+
+        host = matcher.domain_pattern
+        path = UrlMatcher.to_regex_str(matcher.path_pattern) if matcher.path_pattern is not None else r"\Z"
+
+        if host == "*":
+            self.root.get_wildcard().add(matcher, value, path)
+        elif "*" not in host:
+            self.root.get_child(host).get_exact().add(matcher, value, path)
+        elif host.startswith("*.") and ("*" not in host[2:]):
+            self.root.get_child(host[2:]).get_wildcard().add(matcher, value, path)
+        else:
+            # "*" cannot span across the host/path separator
+            self.generic.add(matcher, value, "(?:%s)/(?:%s)" % (UrlMatcher.to_regex_str(host, "[^/]*"), path))
+
+    def compile(self):
+        self.root.compile()
+        self.generic.compile()
+
+    def lookup(self, http_or_https, domain, path="") -> set:
+        rv = set()
+
+        if path and path[0] == "/":
+            path = path[1:]
+
+        node = self.root
+        labels = domain.split(".")
+
+        if node.wildcard:
+            node.wildcard.lookup(http_or_https, path, rv)
+
+        for i in range(len(labels) - 1, -1, -1):
+            node = node.children.get(labels[i])
+            if not node:
+                break
+
+            if i == 0:
+                if node.exact:
+                    node.exact.lookup(http_or_https, path, rv)
+            elif node.wildcard:
+                # "*.domain" requires at least one more label
+                node.wildcard.lookup(http_or_https, path, rv)
+
+        if self.generic.patterns:
+            self.generic.lookup(http_or_https, domain + "/" + path, rv)
+
+        return rv
+
+class _TrieNode:
+    def __init__(self):
+        self.children = {}
+        self.exact = None
+        self.wildcard = None
+
+    # returns the node of the given host, creating it if necessary
+    def get_child(self, host):
+        node = self
+        for label in reversed(host.split(".")):
+            node = node.children.setdefault(label, _TrieNode())
+        return node
+
+    def get_exact(self):
+        if not self.exact:
+            self.exact = _Bucket()
+        return self.exact
+
+    def get_wildcard(self):
+        if not self.wildcard:
+            self.wildcard = _Bucket()
+        return self.wildcard
+
+    def compile(self):
+        for bucket in (self.exact, self.wildcard):
+            if bucket:
+                bucket.compile()
+        for child in self.children.values():
+            child.compile()
+
+class _Bucket:
+    def __init__(self):
+        # (value, http_only, https_only) -> regex strings
+        self.patterns = {}
+        self.keys = []
+        self.alternatives = []
+
+        # index of the first alternative -> combined regex of the alternatives from it
+        self.compiled = {}
+
+    def add(self, matcher, value, regex):
+        self.patterns.setdefault((value, matcher.http_only, matcher.https_only), []).append(regex)
+
+    # Combines all the patterns into a single regex, with a named group for each (value, http_only, https_only)
+    def compile(self):
+        self.keys = list(self.patterns.keys())
+        self.alternatives = ["(?P<m%u>%s)" % (i, "|".join("(?:%s)" % r for r in regexes))
+                             for i, regexes in enumerate(self.patterns.values())]
+        self.compiled = {}
+        if self.alternatives:
+            self.get_regex(0)
+
+    # The regexes which skip the first alternatives are only compiled when needed,
+    # i.e. when multiple patterns of the bucket match the same URL
+    def get_regex(self, start: int):
+        regex = self.compiled.get(start)
+        if regex is None:
+            regex = self.compiled[start] = re.compile("|".join(self.alternatives[start:]))
+        return regex
+
+    def lookup(self, http_or_https, subject, rv):
+        start = 0
+
+        while start < len(self.keys):
+            m = self.get_regex(start).match(subject)
+            if not m:
+                break
+
+            # the first matching alternative, look for other matches after it
+            idx = int(m.lastgroup[1:])
+            start = idx + 1
+
+            value, http_only, https_only = self.keys[idx]
+            if (http_only and (http_or_https == "https")) or (https_only and (http_or_https == "http")):
+                continue
+            rv.add(value)
+
 if __name__ == "__main__":
     # test protocol
     assert(UrlMatcher("http://example.com").matches("http", "example.com"))
@@ -77,6 +224,7 @@ if __name__ == "__main__":
     assert(UrlMatcher("http://*.example.com/*").matches("http", "some.example.com"))
     assert(UrlMatcher("http://example.*/*").matches("http", "example.it"))
     assert(UrlMatcher("http://*example.*/*").matches("http", "myexample.it"))
+    assert(not UrlMatcher("http://example.com/*").matches("http", "example.com.evil.net"))
 
     # test path
     assert(UrlMatcher("http://example.com/*").matches("http", "example.com"))
@@ -86,4 +234,19 @@ if __name__ == "__main__":
     assert(not UrlMatcher("http://example.com").matches("http", "example.com", "/path"))
     assert(UrlMatcher("http://example.com/*.gif").matches("http", "example.com", "/some/path/a.gif"))
 
+    # test index, must agree with UrlMatcher
+    patterns = ["http://example.com", "https://*.example.com/*", "*://*/*.gif", "http*://example.*/foo*",
+                "*://*example.*/*", "https://example.com/path*", "*://sub.example.com/*"]
+    index = UrlMatchIndex()
+    for i, p in enumerate(patterns):
+        index.add(UrlMatcher(p), i)
+    index.compile()
+
+    for url in [("http", "example.com", ""), ("http", "example.com", "/"), ("https", "example.com", "/path/a"),
+                ("https", "a.example.com", "/x"), ("http", "a.example.com", "/x"), ("http", "sub.example.com", "/"),
+                ("https", "example.it", "/foo/bar"), ("http", "myexample.co.uk", "/a.gif"), ("http", "other.net", "/b.gif"),
+                ("http", "example.com.evil.net", "/"), ("http", "example.it", "/bar/foo")]:
+        expected = {i for i, p in enumerate(patterns) if UrlMatcher(p).matches(*url)}
+        assert(index.lookup(*url) == expected), (url, index.lookup(*url), expected)
+
     print("All tests passed")
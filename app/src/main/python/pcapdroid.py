@@ -19,22 +19,39 @@
 #
 
 import socket
+import struct
 import ipaddress
 import errno
 import time
+import asyncio
+import zlib
+import logging
+import threading
 import mitmproxy
 import traceback
+import contextlib
+import collections
 from mitmproxy import http, ctx
 from mitmproxy.net.http.http1.assemble import (
     assemble_request_head,
     assemble_response_head,
-    assemble_body,
 )
 from mitmproxy.proxy import server_hooks
 from mitmproxy.log import LogEntry
 from enum import Enum
 from java import jclass
 from modules.callback_logger import CallbackLogger
+from modules.export_writer import ExportWriter
+from modules.log_buffer import LogBuffer
+from modules.memory_governor import MemoryGovernor
+from modules.control_channel import (
+    ControlReader,
+    CTRL_BYPASS_HOST,
+    CTRL_UNBYPASS_HOST,
+    CTRL_STOP_PAYLOAD,
+    CTRL_RESUME_PAYLOAD,
+    CTRL_CONN_PAYLOAD,
+)
 
 Log = jclass("android.util.Log")
 
@@ -47,11 +64,48 @@ str2lvl = {
     "error": Log.ERROR,
 }
 
+# default short payload size, see MitmConfig.shortPayloadSize
 SHORT_PAYLOAD_MAX_DIRECTION_SIZE = 512
 
+# see MitmAPI.BACKPRESSURE_*
+BACKPRESSURE_BLOCK = 0
+BACKPRESSURE_DROP_PAYLOAD = 1
+BACKPRESSURE_TRUNCATE = 2
+
+# see MitmAPI.COMPRESSION_*
+COMPRESSION_NONE = 0
+COMPRESSION_ZLIB = 1
+COMPRESSION_ZSTD = 2
+
+# see MitmAPI.FRAME_FLAG_*
+FRAME_FLAG_ZLIB = 0x01
+FRAME_FLAG_ZSTD = 0x02
+
+# smaller payloads are not worth compressing
+COMPRESSION_MIN_SIZE = 256
+
 IPPROTO_TCP = 6
 IPPROTO_UDP = 17
 
+# how often to measure the event loop lag, in seconds
+LOOP_LAG_CHECK_INTERVAL = 1.0
+
+# with stream_bodies, bodies of at least this size (or of unknown size) are streamed
+STREAM_MIN_BODY_SIZE = 64 * 1024
+
+# bodies of unknown size are accounted with this size by the memory governor, until complete
+UNKNOWN_BODY_SIZE_ESTIMATE = 64 * 1024
+
+# flow metadata key, set when the memory governor decided to stream the response body. See checkBuffering
+UNBUFFERED_METADATA = "pcapdroid_unbuffered"
+
+# mitmproxy option (and flow metadata key) to keep all the TCP/WebSocket messages of the flows.
+# By default, the exported messages are removed from the flow, see PCAPdroid.trimMessages
+KEEP_MESSAGES_OPTION = "pcapdroid_keep_messages"
+
+# Maximum number of hosts bypassed via CTRL_BYPASS_HOST
+MAX_BYPASS_HOSTS = 4096
+
 def ip_version(ip: str) -> int:
     # strip any IPv6 zone id (e.g. fe80::1%eth0) before parsing
     addr = ipaddress.ip_address(ip.split("%", 1)[0])
@@ -63,32 +117,147 @@ def ip_version(ip: str) -> int:
 def transport_to_ipproto(transport_protocol: str) -> int:
     return IPPROTO_UDP if transport_protocol == "udp" else IPPROTO_TCP
 
-def _assemble_message(message, head: bytes) -> bytes:
+# Returns the (compress function, frame flag) for the given MitmAPI.COMPRESSION_*
+def get_compressor(compression: int):
+    if compression == COMPRESSION_ZSTD:
+        try:
+            import zstandard
+            return zstandard.ZstdCompressor(level=1).compress, FRAME_FLAG_ZSTD
+        except ImportError:
+            print("zstd is not available, falling back to zlib")
+            compression = COMPRESSION_ZLIB
+
+    if compression == COMPRESSION_ZLIB:
+        return (lambda data: zlib.compress(data, 1)), FRAME_FLAG_ZLIB
+    return None, 0
+
+# Yields the parts of the serialized message, without copying the body.
+# content replaces the message content, e.g. for the streamed messages
+def _message_parts(message, head: bytes, content: bytes = None):
     data = message.data
-    if data.trailers and "chunked" not in data.headers.get("transfer-encoding", "").lower():
+    if content is None:
+        content = data.content
+    chunked = "chunked" in data.headers.get("transfer-encoding", "").lower()
+
+    if data.trailers and not chunked:
         # HTTP/2 and HTTP/3 carry trailers without transfer-encoding: chunked, which
         # mitmproxy's assemble_body() refuses to serialize. Fold the trailer headers
         # into the regular header block, producing a valid HTTP/1.1 message
-        head = head[:-2] + bytes(data.trailers) + b"\r\n"
-        return head + data.content
+        yield head[:-2] + bytes(data.trailers) + b"\r\n"
+        yield content
+        return
+
+    yield head
+
+    if chunked:
+        # same as mitmproxy's assemble_body(), without joining the chunk with its framing
+        if content:
+            yield b"%x\r\n" % len(content)
+            yield content
+            yield b"\r\n"
+        if data.trailers:
+            yield b"0\r\n" + bytes(data.trailers) + b"\r\n"
+        else:
+            yield b"0\r\n\r\n"
+    else:
+        yield content
+
+# Serializes the message. If limit is specified, only its first limit bytes are
+# produced, without materializing the full message
+def _assemble_message(message, head: bytes, limit: int = None, content: bytes = None) -> bytes:
+    if limit is None:
+        return b"".join(_message_parts(message, head, content))
+
+    parts = []
+    for part in _message_parts(message, head, content):
+        if len(part) >= limit:
+            parts.append(memoryview(part)[:limit])
+            break
+
+        parts.append(part)
+        limit -= len(part)
 
-    return head + b"".join(assemble_body(data.headers, [data.content], data.trailers))
+    return b"".join(parts)
 
-def assemble_request(request) -> bytes:
+def assemble_request(request, limit: int = None) -> bytes:
     if request.data.content is None:
         raise ValueError("Cannot assemble flow with missing content")
-    return _assemble_message(request, assemble_request_head(request))
+    return _assemble_message(request, assemble_request_head(request), limit)
 
-def assemble_response(response) -> bytes:
-    if response.data.content is None:
+def assemble_response(response, limit: int = None, content: bytes = None) -> bytes:
+    if (content is None) and (response.data.content is None):
         raise ValueError("Cannot assemble flow with missing content")
-    return _assemble_message(response, assemble_response_head(response))
+    return _assemble_message(response, assemble_response_head(response), limit, content)
+
+# Returns the expected size of the message body, None if unknown
+def get_body_size(flow: http.HTTPFlow, message):
+    content_length = message.headers.get("content-length")
+    if content_length is not None:
+        try:
+            return int(content_length)
+        except ValueError:
+            return 0
+
+    if isinstance(message, http.Request):
+        return None if "chunked" in message.headers.get("transfer-encoding", "").lower() else 0
+
+    # unknown response size, unless it has no body
+    if (flow.request.method == "HEAD") or (message.status_code < 200) or (message.status_code in (204, 304)):
+        return 0
+    return None
+
+# Returns True if a message body of the given size (see get_body_size) is large enough to be streamed
+def should_stream(body_size) -> bool:
+    return (body_size is None) or (body_size >= STREAM_MIN_BODY_SIZE)
 
 class AddonOpts:
-    def __init__(self, dump_client, dump_keylog, short_payload):
+    def __init__(self, dump_client, dump_keylog, short_payload, short_payload_size, binary_framing,
+            backpressure, stream_bodies, compression, log_level, connection_frames, memory_budget,
+            control_channel):
         self.dump_client = dump_client
         self.dump_keylog = dump_keylog
         self.short_payload = short_payload
+        self.short_payload_size = short_payload_size if short_payload_size > 0 else SHORT_PAYLOAD_MAX_DIRECTION_SIZE
+        self.binary_framing = binary_framing
+        self.backpressure = backpressure
+        self.stream_bodies = stream_bodies
+        self.compression = compression
+        self.log_level = log_level if log_level > 0 else Log.DEBUG
+        self.connection_frames = connection_frames
+        self.memory_budget = memory_budget
+        self.control_channel = control_channel
+
+    # from a MitmAPI.MitmConfig
+    @staticmethod
+    def from_config(conf, dump_client):
+        return AddonOpts(dump_client, conf.dumpMasterSecrets, conf.shortPayload, conf.shortPayloadSize,
+            conf.binaryFraming, conf.backpressurePolicy, conf.streamBodies, conf.compression,
+            conf.minLogLevel, conf.connectionFrames, conf.memoryBudget, conf.controlChannel)
+
+# The PCAPdroid addon which receives the TLS master secrets
+keylog_addon = None
+
+# A module function rather than a bound method, so that the SSL contexts cached by
+# mitmproxy across the runs deliver the secrets to the current addon
+def log_master_secret(ssl_connection, keymaterial: bytes):
+    addon = keylog_addon
+    if addon and addon.opts.dump_keylog:
+        addon.log_master_secret(ssl_connection, keymaterial)
+
+# Installs the keylog callback only when needed, as it is invoked on every TLS handshake.
+# mitmproxy caches the SSL contexts, which keep the callback they were created with, so
+# the caches are cleared when it changes
+def install_keylog(enabled: bool):
+    callback = log_master_secret if enabled else None
+    if mitmproxy.net.tls.log_master_secret is callback:
+        return
+
+    mitmproxy.net.tls.log_master_secret = callback
+
+    for fn in ("create_proxy_server_context", "create_client_proxy_context"):
+        cache_clear = getattr(getattr(mitmproxy.net.tls, fn, None), "cache_clear", None)
+        if cache_clear:
+            cache_clear()
 
 class MsgType(Enum):
     RUNNING = "running"
@@ -105,67 +274,532 @@ class MsgType(Enum):
     MASTER_SECRET = "secret"
     LOG = "log"
     JS_INJECTED = "js_inject"
+    PAYLOAD_DROPPED = "dropped"
+    HTTP_REQUEST_BODY = "http_req_body"
+    HTTP_REPLY_BODY = "http_rep_body"
+    CONN_OPEN = "conn_open"
+    CONN_CLOSE = "conn_close"
+    EPOCH = "epoch"
+    GOVERNOR = "governor"
+
+# The messages which can be dropped or truncated under backpressure
+PAYLOAD_MSG_TYPES = {
+    MsgType.HTTP_REQUEST,
+    MsgType.HTTP_REPLY,
+    MsgType.TCP_CLIENT_MSG,
+    MsgType.TCP_SERVER_MSG,
+    MsgType.WEBSOCKET_CLIENT_MSG,
+    MsgType.WEBSOCKET_SERVER_MSG,
+    MsgType.HTTP_REQUEST_BODY,
+    MsgType.HTTP_REPLY_BODY,
+}
+
+# MsgType -> binary frame type, see MitmAPI.FRAME_*
+MSG_TYPE_IDS = {
+    MsgType.RUNNING: 1,
+    MsgType.TLS_ERROR: 2,
+    MsgType.HTTP_ERROR: 3,
+    MsgType.HTTP_REQUEST: 4,
+    MsgType.HTTP_REPLY: 5,
+    MsgType.TCP_CLIENT_MSG: 6,
+    MsgType.TCP_SERVER_MSG: 7,
+    MsgType.TCP_ERROR: 8,
+    MsgType.WEBSOCKET_CLIENT_MSG: 9,
+    MsgType.WEBSOCKET_SERVER_MSG: 10,
+    MsgType.DATA_TRUNCATED: 11,
+    MsgType.MASTER_SECRET: 12,
+    MsgType.LOG: 13,
+    MsgType.JS_INJECTED: 14,
+    MsgType.PAYLOAD_DROPPED: 15,
+    MsgType.HTTP_REQUEST_BODY: 16,
+    MsgType.HTTP_REPLY_BODY: 17,
+    MsgType.CONN_OPEN: 18,
+    MsgType.CONN_CLOSE: 19,
+    MsgType.EPOCH: 20,
+    MsgType.GOVERNOR: 21,
+}
+
+# Binary frame header: tstamp_millis, ipver, ipproto, port, frame type, flags, payload length
+# See MitmAPI.FRAME_HEADER_SIZE
+BINARY_HEADER = struct.Struct("<QBBHBBI")
+
+# Binary frame header with connection_frames: tstamp offset (millis since the EPOCH), connection id,
+# frame type, flags, payload length. See MitmAPI.FRAME_CONN_HEADER_SIZE
+CONN_HEADER = struct.Struct("<IIBBI")
+CONN_OPEN_PAYLOAD = struct.Struct("<BBH")
+EPOCH_PAYLOAD = struct.Struct("<Q")
+MAX_TSTAMP_OFFSET = 0xFFFFFFFF
+
+# The metadata of the exported connection (client or server, see AddonOpts.dump_client),
+# computed once and stored into the mitmproxy connection
+class ConnInfo:
+    __slots__ = ("id", "ipver", "ipproto", "port")
+
+    def __init__(self, conn_id: int, ipver: int, ipproto: int, port: int):
+        self.id = conn_id
+        self.ipver = ipver
+        self.ipproto = ipproto
+        self.port = port
+
+# for the messages not related to a connection
+NO_CONN_INFO = ConnInfo(0, 4, IPPROTO_TCP, 0)
 
 # pcapdroid per-flow state
 class FlowData:
     request_sent: bool = False
     response_sent: bool = False
     truncated: bool = False
+    active: bool = False
+    request_streamed: bool = False
+    response_streamed: bool = False
+    request_bytes: int = 0
+    response_bytes: int = 0
+    retained_bytes: int = 0
+
+# A mitmproxy stream callable, which exports the body chunks as they are forwarded
+# See https://docs.mitmproxy.org/stable/overview/features/#streaming
+# With export_body=False, only the head is exported, followed by a DATA_TRUNCATED
+class BodyStream:
+    def __init__(self, addon, flow: http.HTTPFlow, req: bool, export_body: bool = True):
+        self.addon = addon
+        self.flow = flow
+        self.req = req
+        self.export_body = export_body
+        self.started = False
+        self.skipped = False
+
+    def __call__(self, chunk: bytes) -> bytes:
+        # NOTE: only called if no other addon disabled the streaming in the *headers hooks
+        if not self.started:
+            self.started = True
+            self.addon.streamStarted(self.flow, self.req)
+
+        if chunk:
+            if self.export_body:
+                self.addon.streamChunk(self.flow, self.req, chunk)
+            elif not self.skipped:
+                self.skipped = True
+                self.addon.streamSkipped(self.flow, self.req)
+        return chunk
+
+# A mitmproxy stream callable, which forwards the body chunks keeping a copy of up to limit
+# bytes. The response is then exported in the response hook as a single
+# HTTP_REPLY frame, as for the buffered responses. Used when stream_bodies is not enabled
+class CollectingBodyStream:
+    def __init__(self, addon, flow: http.HTTPFlow, limit):
+        self.addon = addon
+        self.flow = flow
+        self.limit = limit
+        self.chunks = []
+        self.size = 0
+
+    def __call__(self, chunk: bytes) -> bytes:
+        if chunk and (self.size < self.limit):
+            self.chunks.append(chunk)
+            self.size += len(chunk)
+
+            # the copy is buffered until the flow ends
+            self.addon.governor.update((self.flow.id, False), self.size)
+        return chunk
+
+    def get_content(self) -> bytes:
+        return b"".join(self.chunks)
 
 # A mitmproxy addon
 # See https://docs.mitmproxy.org/stable/api/events.html
 class PCAPdroid:
     def __init__(self, sock: socket.socket, opts: AddonOpts):
         self.sock = sock
-        self.opts = opts
         self.shutting_down = False
+        self.event_loop = asyncio.get_running_loop()
+
+        # backpressure stats
+        self.dropped_frames = 0
+        self.dropped_bytes = 0
+        self.truncated_frames = 0
+        self.truncated_bytes = 0
+
+        # runtime stats, see get_stats
+        self.active_flows = 0
+        self.total_flows = 0
+        self.frames_by_type = {t.value: 0 for t in MsgType}
+        self.bytes_by_type = {t.value: 0 for t in MsgType}
+        self.loop_lag = 0.0
+        self.loop_lag_max = 0.0
+        self.compressed_frames = 0
+        self.compressed_bytes_in = 0
+        self.compressed_bytes_out = 0
+
+        # TCP/WebSocket messages retention, see trimMessages
+        self.retained = {}
+        self.trimmed_msgs = 0
+        self.trimmed_msg_bytes = 0
+
+        # bytes buffered by the in-flight flows, keyed by (flow id, is request), or (flow id, None) for the messages
+        self.governor = MemoryGovernor(opts.memory_budget, self._on_governor_level)
+
+        # control channel state, only modified from the event loop. See applyControl
+        self.bypass_hosts = set()
+        self.stopped_conns = set()
+        # ctrlKey -> ConnInfo of the open connections, to validate the CTRL_STOP_PAYLOAD
+        self.live_conns = {}
+        self.ctrl_invalid = 0
+        self.bypassed_conns = 0
+        self.stopped_payloads = 0
+
+        self.set_opts(opts)
+
+        # see ConnInfo
+        self.next_conn_id = 1
+        self.epoch_lock = threading.Lock()
+        self.epoch = 0
+
+        next_check = self.event_loop.time() + LOOP_LAG_CHECK_INTERVAL
+        self.lag_timer = self.event_loop.call_at(next_check, self._check_loop_lag, next_check)
+
+        # frames are written to the socket by a separate thread, see ExportWriter
+        self.writer = ExportWriter(sock, self._on_write_error)
+        self.writer.start()
+
+        if opts.connection_frames:
+            with self.epoch_lock:
+                self.set_epoch(int(time.time() * 1000))
+
+        # control frames sent by PCAPdroid, see applyControl
+        self.control = None
+        if opts.control_channel:
+            self.control = ControlReader(sock, self._on_control)
+            self.control.start()
+
+        # log lines are rate limited and written in batches, see LogBuffer
+        self.pending_logs = collections.deque()
+        self.log_buffer = LogBuffer(self._write_log, opts.log_level)
+        self.log_buffer.start()
 
         # intercept log events from mitmproxy
-        self.logger = CallbackLogger(self._add_log)
+        self.logger = CallbackLogger(self._add_log, threadsafe=True)
+        self.logger.setLevel(self.get_logging_level())
         self.logger.install()
 
-        if opts.dump_keylog:
-            mitmproxy.net.tls.log_master_secret = self.log_master_secret
-        else:
-            mitmproxy.net.tls.log_master_secret = None
+        global keylog_addon
+        keylog_addon = self
+
+    # Applies the new options, also while running. The framing cannot be changed
+    def set_opts(self, opts: AddonOpts):
+        if hasattr(self, "opts"):
+            opts.binary_framing = self.opts.binary_framing
+            opts.connection_frames = self.opts.connection_frames
+            opts.control_channel = self.opts.control_channel
+        elif opts.connection_frames and not opts.binary_framing:
+            print("Connection frames require the binary framing")
+            opts.connection_frames = False
+
+        # the text framing has no room for the frame flags
+        if opts.compression and not opts.binary_framing:
+            print("Payload compression requires the binary framing")
+            opts.compression = COMPRESSION_NONE
+
+        self.compress, self.compress_flag = get_compressor(opts.compression)
+        self.opts = opts
+        install_keylog(opts.dump_keylog)
+        self.governor.set_budget(opts.memory_budget)
+
+        if hasattr(self, "log_buffer"):
+            self.log_buffer.min_level = opts.log_level
+            self.logger.setLevel(self.get_logging_level())
+
+    # the mitmproxy info messages are logged as debug, see _add_log
+    def get_logging_level(self) -> int:
+        return logging.DEBUG if (self.opts.log_level <= Log.DEBUG) else logging.WARNING
 
     # override
     def done(self):
+        global keylog_addon
         print("PCAPdroid done")
         self.logger.uninstall()
+        self.close()
+
+        if keylog_addon is self:
+            keylog_addon = None
+            install_keylog(False)
+
+    # flushes the pending frames and stops the writer
+    def close(self):
+        self.lag_timer.cancel()
+
+        if self.control:
+            self.control.close()
+
+        # before the writer, to export the pending lines
+        self.log_buffer.close(timeout=1)
+        self._send_logs()
+
+        if self.writer.is_alive():
+            if not self.writer.close():
+                Log.println(Log.WARN, "mitmproxy", "Export: the pending frames were discarded, PCAPdroid is not reading")
+
+            stats = self.writer.get_stats()
+            Log.println(Log.DEBUG, "mitmproxy", "Export: %u frames, %u bytes, %u flushes, max latency %.1f ms, blocked %u ms" % (
+                stats["frames_written"], stats["bytes_written"], stats["flushes"],
+                stats["flush_latency_max_ms"], stats["blocked_time_ms"]))
+
+            if self.dropped_frames or self.truncated_frames or stats["overflow_frames"]:
+                Log.println(Log.DEBUG, "mitmproxy", "Backpressure: %u frames dropped (%u bytes), %u truncated (%u bytes), %u overflowed (%u bytes)" % (
+                    self.dropped_frames, self.dropped_bytes, self.truncated_frames, self.truncated_bytes,
+                    stats["overflow_frames"], stats["overflow_bytes"]))
+
+    # Returns the ConnInfo of the exported connection, computing it on the first call
+    def getConnInfo(self, conn: mitmproxy.connection.Connection) -> ConnInfo:
+        info = getattr(conn, "pcapdroid_info", None)
+        if info:
+            return info
+
+        # the peer address for the client, the local address for the server
+        addr = conn.peername if isinstance(conn, mitmproxy.connection.Client) else conn.sockname
+        if not addr:
+            # e.g. server not connected yet
+            return NO_CONN_INFO
+
+        conn_id = self.next_conn_id
+        self.next_conn_id = (conn_id % 0xFFFFFFFF) + 1
+
+        info = ConnInfo(conn_id, ip_version(addr[0]), transport_to_ipproto(conn.transport_protocol), addr[1])
+        conn.pcapdroid_info = info
+        self.live_conns[self.ctrlKey(info)] = info
+
+        if self.opts.connection_frames:
+            self.send_frame(time.time(), info, MsgType.CONN_OPEN,
+                CONN_OPEN_PAYLOAD.pack(info.ipver, info.ipproto, info.port))
+        return info
+
+    def connClosed(self, conn: mitmproxy.connection.Connection):
+        info = getattr(conn, "pcapdroid_info", None)
+
+        if info and self.opts.connection_frames:
+            self.send_frame(time.time(), info, MsgType.CONN_CLOSE, b"")
+
+        if info:
+            key = self.ctrlKey(info)
+
+            # the port may have been reused by a new connection
+            if self.live_conns.get(key) is info:
+                del self.live_conns[key]
+                self.stopped_conns.discard(key)
+
+    # override
+    def client_connected(self, client: mitmproxy.connection.Client):
+        if self.opts.dump_client:
+            self.getConnInfo(client)
+
+    # override
+    def client_disconnected(self, client: mitmproxy.connection.Client):
+        if self.opts.dump_client:
+            self.connClosed(client)
+
+    # override
+    def server_connected(self, data: server_hooks.ServerConnectionHookData):
+        if not self.opts.dump_client:
+            self.getConnInfo(data.server)
+
+    # override
+    def server_disconnected(self, data: server_hooks.ServerConnectionHookData):
+        if not self.opts.dump_client:
+            self.connClosed(data.server)
+
+    # the frames timestamps are relative to the epoch, see CONN_HEADER. Must hold the epoch_lock
+    def set_epoch(self, tstamp_millis: int):
+        self.epoch = tstamp_millis
+        if self.writer.write(self.pack_header(tstamp_millis, NO_CONN_INFO, MsgType.EPOCH, EPOCH_PAYLOAD.size),
+                EPOCH_PAYLOAD.pack(tstamp_millis), block=False):
+            self.frames_by_type[MsgType.EPOCH.value] += 1
+
+    # Packs the header and queues the frame, optionally preceded by a DATA_TRUNCATED.
+    # With the connection frames, the epoch_lock is held across the two, so that a frame
+    # relative to the old epoch is never queued after a new EPOCH by another thread.
+    # Returns False if the frame was not queued, see ExportWriter.write
+    def write_frame(self, tstamp_millis: int, info: ConnInfo, payload_type: MsgType, payload: bytes,
+            flags: int = 0, block=True, droppable=False, truncated=False) -> bool:
+        with (self.epoch_lock if self.opts.connection_frames else contextlib.nullcontext()):
+            header = self.pack_header(tstamp_millis, info, payload_type, len(payload), flags)
+            if truncated:
+                # queued (or dropped) together with the payload frame it refers to
+                header = self.pack_header(tstamp_millis, info, MsgType.DATA_TRUNCATED, 0) + header
+
+            return self.writer.write(header, payload, block=block, droppable=droppable)
+
+    # a frame not subject to the backpressure policy
+    def send_frame(self, tstamp: float, info: ConnInfo, payload_type: MsgType, payload: bytes):
+        if self.write_frame(int(tstamp * 1000), info, payload_type, payload, block=False):
+            self.frames_by_type[payload_type.value] += 1
 
     def send_message(self, tstamp: float, client_conn: mitmproxy.connection.Client,
             server_conn: mitmproxy.connection.Server, payload_type: MsgType, payload: bytes):
-        port = 0
-        ipver = 4
-        ipproto = IPPROTO_TCP
-        if self.opts.dump_client and client_conn:
-            port = client_conn.peername[1]
-            ipver = ip_version(client_conn.peername[0])
-            ipproto = transport_to_ipproto(client_conn.transport_protocol)
-        elif not self.opts.dump_client and server_conn:
-            port = server_conn.sockname[1]
-            ipver = ip_version(server_conn.sockname[0])
-            ipproto = transport_to_ipproto(server_conn.transport_protocol)
+        conn = client_conn if self.opts.dump_client else server_conn
+        info = self.getConnInfo(conn) if conn else NO_CONN_INFO
+
+        if self.stopped_conns and (payload_type in PAYLOAD_MSG_TYPES) and (self.ctrlKey(info) in self.stopped_conns):
+            self.stopped_payloads += 1
+            return
 
         tstamp_millis = int((tstamp or time.time()) * 1000)
+        policy = self.opts.backpressure
+        truncated = False
 
-        header = "%u:%u:%u:%u:%s:%u\n" % (tstamp_millis, ipver, ipproto, port, payload_type.value, len(payload))
+        if (policy != BACKPRESSURE_BLOCK) and (payload_type in PAYLOAD_MSG_TYPES) and \
+                self.writer.is_congested(len(payload)):
+            if policy == BACKPRESSURE_DROP_PAYLOAD:
+                self.dropped_frames += 1
+                self.dropped_bytes += len(payload)
 
-        try:
-            self.sock.sendall(header.encode('ascii'))
-            self.sock.sendall(payload)
-        except socket.error as e:
-            if e.errno == errno.EPIPE:
-                if not self.shutting_down:
-                    self.shutting_down = True
-                    print("PCAPdroid closed")
-                    ctx.master.shutdown()
-            else:
-                if not self.shutting_down:
-                    self.shutting_down = True
-                    print(e)
-                    ctx.master.shutdown()
+                payload_type = MsgType.PAYLOAD_DROPPED
+                payload = str(len(payload)).encode("ascii")
+            elif len(payload) > self.opts.short_payload_size:
+                self.truncated_frames += 1
+                self.truncated_bytes += len(payload) - self.opts.short_payload_size
+
+                payload = payload[:self.opts.short_payload_size]
+                truncated = True
+
+        payload_len = len(payload)
+        flags = 0
+
+        if self.compress and (len(payload) >= COMPRESSION_MIN_SIZE) and (payload_type in PAYLOAD_MSG_TYPES):
+            compressed = self.compress(payload)
+
+            # e.g. images or already compressed bodies
+            if len(compressed) < len(payload):
+                self.compressed_frames += 1
+                self.compressed_bytes_in += len(payload)
+                self.compressed_bytes_out += len(compressed)
+
+                payload = compressed
+                flags = self.compress_flag
+
+        # with a non-blocking policy, the payload frames are dropped when the queue reaches its hard limit
+        if self.write_frame(tstamp_millis, info, payload_type, payload, flags, block=(policy == BACKPRESSURE_BLOCK),
+                droppable=(payload_type in PAYLOAD_MSG_TYPES), truncated=truncated):
+            # the bytes before compression
+            self.frames_by_type[payload_type.value] += 1
+            self.bytes_by_type[payload_type.value] += payload_len
+
+            if truncated:
+                self.frames_by_type[MsgType.DATA_TRUNCATED.value] += 1
+
+    # With the connection frames, must hold the epoch_lock, see write_frame
+    def pack_header(self, tstamp_millis: int, info: ConnInfo,
+            payload_type: MsgType, payload_len: int, flags: int = 0) -> bytes:
+        if self.opts.connection_frames:
+            offset = tstamp_millis - self.epoch
+
+            if offset > MAX_TSTAMP_OFFSET:
+                # e.g. after ~49 days or a clock jump forward
+                self.set_epoch(tstamp_millis)
+                offset = 0
+            elif offset < 0:
+                # a clock change backwards, or a frame timestamped before the epoch (e.g. mitmproxy
+                # timestamps). Only move the epoch forward, so that the timestamps never go back
+                offset = 0
+
+            return CONN_HEADER.pack(offset, info.id, MSG_TYPE_IDS[payload_type], flags, payload_len)
+        elif self.opts.binary_framing:
+            return BINARY_HEADER.pack(tstamp_millis, info.ipver, info.ipproto, info.port, MSG_TYPE_IDS[payload_type],
+                flags, payload_len)
+        else:
+            return ("%u:%u:%u:%u:%s:%u\n" % (tstamp_millis, info.ipver, info.ipproto, info.port,
+                payload_type.value, payload_len)).encode('ascii')
+
+    # called by the ExportWriter thread
+    def _on_write_error(self, e: OSError):
+        self.event_loop.call_soon_threadsafe(self._handle_write_error, e)
+
+    def _handle_write_error(self, e: OSError):
+        if self.shutting_down:
+            return
+        self.shutting_down = True
+
+        if e.errno == errno.EPIPE:
+            print("PCAPdroid closed")
+        else:
+            print(e)
+        ctx.master.shutdown()
+
+    # NOTE: the event loop is delayed by the hooks and by a blocking ExportWriter
+    def _check_loop_lag(self, scheduled: float):
+        now = self.event_loop.time()
+        self.loop_lag = max(now - scheduled, 0)
+        self.loop_lag_max = max(self.loop_lag_max, self.loop_lag)
+
+        next_check = now + LOOP_LAG_CHECK_INTERVAL
+        self.lag_timer = self.event_loop.call_at(next_check, self._check_loop_lag, next_check)
+
+    # NOTE: called from the MitmService thread, only reads the counters
+    def get_stats(self) -> dict:
+        stats = {
+            "active_flows": self.active_flows,
+            "total_flows": self.total_flows,
+            "frames": dict(self.frames_by_type),
+            "bytes": dict(self.bytes_by_type),
+            "dropped_frames": self.dropped_frames,
+            "dropped_bytes": self.dropped_bytes,
+            "truncated_frames": self.truncated_frames,
+            "truncated_bytes": self.truncated_bytes,
+            "compressed_frames": self.compressed_frames,
+            "compressed_bytes_in": self.compressed_bytes_in,
+            "compressed_bytes_out": self.compressed_bytes_out,
+            "loop_lag_ms": self.loop_lag * 1000,
+            "loop_lag_max_ms": self.loop_lag_max * 1000,
+            "retained_msg_flows": len(self.retained),
+            "retained_msg_bytes": sum(self.retained.values()),
+            "retained_msg_max_flow_bytes": max(self.retained.values(), default=0),
+            "trimmed_msgs": self.trimmed_msgs,
+            "trimmed_msg_bytes": self.trimmed_msg_bytes,
+            "ctrl_frames": self.control.frames if self.control else 0,
+            "ctrl_invalid": self.ctrl_invalid,
+            "bypass_hosts": len(self.bypass_hosts),
+            "bypassed_conns": self.bypassed_conns,
+            "stopped_conns": len(self.stopped_conns),
+            "stopped_payloads": self.stopped_payloads,
+        }
+        stats.update(self.writer.get_stats())
+        stats.update(self.log_buffer.get_stats())
+        return stats
+
+    def flowStarted(self, flow):
+        flow_data = self.getFlowData(flow)
+        if not flow_data.active:
+            flow_data.active = True
+            self.active_flows += 1
+            self.total_flows += 1
+
+    def flowEnded(self, flow):
+        flow_data = self.getFlowData(flow)
+        if flow_data.active:
+            flow_data.active = False
+            self.active_flows -= 1
+
+        self.retained.pop(flow.id, None)
+        self.governor.release((flow.id, True))
+        self.governor.release((flow.id, False))
+        self.governor.release((flow.id, None))
+
+    # Removes the messages of a TCP/WebSocket flow which were already exported and seen by all the
+    # addons, keeping the last one for the following addons. Long-lived flows would otherwise
+    # keep all their messages in memory. Can be disabled via KEEP_MESSAGES_OPTION
+    def trimMessages(self, flow, messages):
+        flow_data = self.getFlowData(flow)
+        size = len(messages[-1].content)
+
+        if ctx.options.pcapdroid_keep_messages or flow.metadata.get(KEEP_MESSAGES_OPTION):
+            flow_data.retained_bytes += size
+        else:
+            if len(messages) > 1:
+                self.trimmed_msgs += len(messages) - 1
+                self.trimmed_msg_bytes += flow_data.retained_bytes
+                del messages[:-1]
+            flow_data.retained_bytes = size
+
+        self.retained[flow.id] = flow_data.retained_bytes
+        self.governor.update((flow.id, None), flow_data.retained_bytes)
 
     def getFlowData(self, flow):
         # Extend the flow with additional data
@@ -173,9 +807,62 @@ class PCAPdroid:
             flow.pd_data = FlowData()
         return flow.pd_data
 
+    # short payload for streamed messages: the head and the body chunks share the per-direction budget
+    def checkStreamPayload(self, flow, data, req):
+        flow_data = self.getFlowData(flow)
+
+        if not self.opts.short_payload:
+            return data
+        if flow_data.truncated:
+            return
+
+        sent_bytes = flow_data.request_bytes if req else flow_data.response_bytes
+        remaining = self.opts.short_payload_size - sent_bytes
+
+        if len(data) >= remaining:
+            flow_data.truncated = True
+            data = data[:remaining]
+            self.send_message(time.time(), flow.client_conn, flow.server_conn, MsgType.DATA_TRUNCATED, b"")
+
+        if req:
+            flow_data.request_sent = True
+            flow_data.request_bytes += len(data)
+        else:
+            flow_data.response_sent = True
+            flow_data.response_bytes += len(data)
+        return data
+
+    def streamStarted(self, flow: http.HTTPFlow, req: bool):
+        flow_data = self.getFlowData(flow)
+
+        if req:
+            flow_data.request_streamed = True
+            message = flow.request
+            head = assemble_request_head(message)
+            msg_type = MsgType.HTTP_REQUEST
+        else:
+            flow_data.response_streamed = True
+            message = flow.response
+            head = assemble_response_head(message)
+            msg_type = MsgType.HTTP_REPLY
+
+        data = self.checkStreamPayload(flow, head, req)
+        if data:
+            self.send_message(message.timestamp_start, flow.client_conn, flow.server_conn, msg_type, data)
+
+    # the body is not exported, see checkBuffering
+    def streamSkipped(self, flow: http.HTTPFlow, req: bool):
+        self.send_message(time.time(), flow.client_conn, flow.server_conn, MsgType.DATA_TRUNCATED, b"")
+
+    def streamChunk(self, flow: http.HTTPFlow, req: bool, chunk: bytes):
+        data = self.checkStreamPayload(flow, chunk, req)
+        if data:
+            self.send_message(time.time(), flow.client_conn, flow.server_conn,
+                MsgType.HTTP_REQUEST_BODY if req else MsgType.HTTP_REPLY_BODY, data)
+
     def checkPayload(self, flow, data, req):
         # short payload works as follows:
-        # 1. send at most MINIMAL_PAYLOAD_MAX_DIRECTION_SIZE bytes, per direction (send / receive)
+        # 1. send at most short_payload_size bytes, per direction (send / receive)
         # 2. send DATA_TRUNCATED message if data is truncated
         flow_data = self.getFlowData(flow)
 
@@ -188,9 +875,9 @@ class PCAPdroid:
         if sent_flag:
             flow_data.truncated = True
             data = None
-        elif len(data) >= SHORT_PAYLOAD_MAX_DIRECTION_SIZE:
+        elif len(data) >= self.opts.short_payload_size:
             flow_data.truncated = True
-            data = data[:SHORT_PAYLOAD_MAX_DIRECTION_SIZE]
+            data = data[:self.opts.short_payload_size]
 
         if flow_data.truncated:
             self.send_message(time.time(), flow.client_conn, flow.server_conn, MsgType.DATA_TRUNCATED, b"")
@@ -201,6 +888,108 @@ class PCAPdroid:
             flow_data.response_sent = True
         return data
 
+    # The max size of the assembled HTTP messages, None for no limit.
+    # One extra byte tells checkPayload that the data must be truncated.
+    def assembleLimit(self):
+        return (self.opts.short_payload_size + 1) if self.opts.short_payload else None
+
+    # Called when the body of the message is about to be received. If the MemoryGovernor does
+    # not allow buffering it, the body is streamed: exported with stream_bodies, or only forwarded
+    def checkBuffering(self, flow: http.HTTPFlow, message, req: bool, body_size):
+        if message.stream:
+            # already streamed
+            return
+
+        if self.governor.should_buffer(body_size):
+            self.governor.update((flow.id, req), UNKNOWN_BODY_SIZE_ESTIMATE if (body_size is None) else body_size)
+        else:
+            # the following addons (e.g. the Js Injector) must not disable the streaming
+            if not req:
+                flow.metadata[UNBUFFERED_METADATA] = True
+            message.stream = BodyStream(self, flow, req, export_body=self.opts.stream_bodies)
+
+    def _on_governor_level(self, level: int, buffered: int, budget: int):
+        self.log("Memory governor level %u: %u of %u bytes buffered" % (level, buffered, budget),
+            Log.WARN if level else Log.INFO)
+        self.send_frame(time.time(), NO_CONN_INFO, MsgType.GOVERNOR,
+            ("%u:%u:%u" % (level, buffered, budget)).encode("ascii"))
+
+    # the CTRL_STOP_PAYLOAD key of the connection: its ID with connection_frames, the port otherwise
+    def ctrlKey(self, info: ConnInfo) -> int:
+        return info.id if self.opts.connection_frames else info.port
+
+    # True if PCAPdroid asked to stop exporting the payload of the connection, see CTRL_STOP_PAYLOAD
+    def payloadStopped(self, client_conn, server_conn) -> bool:
+        if not self.stopped_conns:
+            return False
+
+        conn = client_conn if self.opts.dump_client else server_conn
+        info = getattr(conn, "pcapdroid_info", None)
+        return (info is not None) and (self.ctrlKey(info) in self.stopped_conns)
+
+    # True if the host, or one of its parent domains, was bypassed via CTRL_BYPASS_HOST
+    def isBypassed(self, host: str) -> bool:
+        host = host.lower().rstrip(".")
+
+        while host:
+            if host in self.bypass_hosts:
+                return True
+            host = host.partition(".")[2]
+        return False
+
+    # called by the ControlReader thread
+    def _on_control(self, ctrl_type: int, payload: bytes):
+        self.event_loop.call_soon_threadsafe(self.applyControl, ctrl_type, payload)
+
+    def applyControl(self, ctrl_type: int, payload: bytes):
+        if ctrl_type in (CTRL_BYPASS_HOST, CTRL_UNBYPASS_HOST):
+            host = payload.decode("ascii", "replace").strip().lower().rstrip(".")
+
+            if ctrl_type == CTRL_UNBYPASS_HOST:
+                if host:
+                    self.bypass_hosts.discard(host)
+                else:
+                    self.bypass_hosts.clear()
+            elif host and (len(self.bypass_hosts) < MAX_BYPASS_HOSTS):
+                self.bypass_hosts.add(host)
+            else:
+                self.ctrl_invalid += 1
+        elif (ctrl_type in (CTRL_STOP_PAYLOAD, CTRL_RESUME_PAYLOAD)) and (len(payload) == CTRL_CONN_PAYLOAD.size):
+            key = CTRL_CONN_PAYLOAD.unpack(payload)[0]
+
+            if ctrl_type == CTRL_RESUME_PAYLOAD:
+                self.stopped_conns.discard(key)
+            elif key in self.live_conns:
+                self.stopped_conns.add(key)
+            else:
+                # e.g. the connection is already closed, its port may be reused by another connection
+                self.ctrl_invalid += 1
+        else:
+            self.ctrl_invalid += 1
+
+    # override
+    def tls_clienthello(self, data: mitmproxy.tls.ClientHelloData):
+        if not self.bypass_hosts or data.ignore_connection:
+            return
+
+        host = data.client_hello.sni
+        if not host and data.context.server.address:
+            host = data.context.server.address[0]
+
+        if host and self.isBypassed(host):
+            # the connection is forwarded as-is, without decrypting it
+            data.ignore_connection = True
+            self.bypassed_conns += 1
+
+    # override
+    def load(self, loader):
+        loader.add_option(
+            name=KEEP_MESSAGES_OPTION,
+            typespec=bool,
+            default=False,
+            help="Keep all the TCP and WebSocket messages of the flows, for the addons which need them",
+        )
+
     # override
     def running(self):
         self.send_message(time.time(), None, None, MsgType.RUNNING, b'')
@@ -208,30 +997,103 @@ class PCAPdroid:
     def server_connect_error(self, data: server_hooks.ServerConnectionHookData):
         self.send_message(time.time(), data.client, data.server, MsgType.TCP_ERROR, data.server.error.encode("ascii"))
 
+    # override
+    def requestheaders(self, flow: http.HTTPFlow):
+        self.flowStarted(flow)
+
+        # NOTE: the following addons can still disable the streaming
+        body_size = get_body_size(flow, flow.request)
+        if self.opts.stream_bodies and not flow.request.stream and should_stream(body_size):
+            flow.request.stream = BodyStream(self, flow, req=True)
+        self.checkBuffering(flow, flow.request, True, body_size)
+
+    # override
+    def responseheaders(self, flow: http.HTTPFlow):
+        body_size = get_body_size(flow, flow.response)
+        if self.opts.stream_bodies and not flow.response.stream and should_stream(body_size):
+            flow.response.stream = BodyStream(self, flow, req=False)
+        self.checkBuffering(flow, flow.response, False, body_size)
+
+    # Called when a following addon (e.g. the Js Injector) disables the streaming of the response,
+    # to account the body in the MemoryGovernor. The response is streamed again if it cannot be buffered
+    def responseBuffered(self, flow: http.HTTPFlow):
+        self.checkBuffering(flow, flow.response, False, get_body_size(flow, flow.response))
+
+    # Returns a stream which exports the response body, for the addons which decide to stream a
+    # response (e.g. the Js Injector, for the responses which are not going to be injected), or None
+    # to buffer it. The export format does not change if stream_bodies is not enabled. Without a short
+    # payload limit, the exported copy would hold the whole body, so buffering the response is cheaper
+    def responseStream(self, flow: http.HTTPFlow):
+        if self.opts.stream_bodies:
+            return BodyStream(self, flow, req=False)
+
+        limit = self.assembleLimit()
+        if limit is None:
+            return None
+        return CollectingBodyStream(self, flow, limit)
+
     # override
     def request(self, flow: http.HTTPFlow):
-        if flow.request:
-            data = self.checkPayload(flow, assemble_request(flow.request), req=True)
+        # the actual size of the buffered body, released when the flow ends
+        self.governor.update((flow.id, True), len(flow.request.raw_content or b""))
+
+        if flow.request and not self.getFlowData(flow).request_streamed and \
+                not self.payloadStopped(flow.client_conn, flow.server_conn):
+            data = self.checkPayload(flow, assemble_request(flow.request, self.assembleLimit()), req=True)
             if data:
                 self.send_message(flow.request.timestamp_start, flow.client_conn, flow.server_conn, MsgType.HTTP_REQUEST, data)
 
     # override
     def response(self, flow: http.HTTPFlow) -> None:
         if flow.response:
+            # the actual size of the buffered body, e.g. for the bodies of unknown size
+            if not flow.response.stream:
+                self.governor.update((flow.id, False), len(flow.response.raw_content or b""))
+
+            # websocket flows end in websocket_end
+            if flow.response.status_code != 101:
+                self.flowEnded(flow)
+
             if hasattr(flow, "js_injector_scripts"):
                 self.send_message(flow.response.timestamp_start, flow.client_conn, flow.server_conn,
                                   MsgType.JS_INJECTED, flow.js_injector_scripts.encode("ascii"))
 
-            data = self.checkPayload(flow, assemble_response(flow.response), req=False)
+            if self.getFlowData(flow).response_streamed:
+                # already exported by BodyStream
+                return
+
+            if self.payloadStopped(flow.client_conn, flow.server_conn):
+                return
+
+            stream = flow.response.stream
+            content = stream.get_content() if isinstance(stream, CollectingBodyStream) else None
+
+            data = self.checkPayload(flow, assemble_response(flow.response, self.assembleLimit(), content), req=False)
             if data:
                 self.send_message(flow.response.timestamp_start, flow.client_conn, flow.server_conn, MsgType.HTTP_REPLY, data)
 
+    # override
+    def websocket_end(self, flow: http.HTTPFlow):
+        self.flowEnded(flow)
+
+    # override
+    def tcp_start(self, flow: mitmproxy.tcp.TCPFlow):
+        self.flowStarted(flow)
+
+    # override
+    def tcp_end(self, flow: mitmproxy.tcp.TCPFlow):
+        self.flowEnded(flow)
+
     # override
     def tcp_message(self, flow: mitmproxy.tcp.TCPFlow):
         msg = flow.messages[-1]
         if not msg:
              return
 
+        self.trimMessages(flow, flow.messages)
+        if self.payloadStopped(flow.client_conn, flow.server_conn):
+            return
+
         data = msg.content
         payload_type = None
 
@@ -251,6 +1113,10 @@ class PCAPdroid:
         if not msg:
             return
 
+        self.trimMessages(flow, flow.websocket.messages)
+        if self.payloadStopped(flow.client_conn, flow.server_conn):
+            return
+
         data = msg.content
         payload_type = None
 
@@ -277,20 +1143,40 @@ class PCAPdroid:
 
     # override
     def error(self, flow: http.HTTPFlow):
+        self.flowEnded(flow)
         self.send_message(time.time(), flow.client_conn, flow.server_conn, MsgType.HTTP_ERROR, flow.error.msg.encode("ascii"))
 
     # override
     def tcp_error(self, flow: mitmproxy.tcp.TCPFlow):
+        self.flowEnded(flow)
         self.send_message(time.time(), flow.context.client, flow.context.server, MsgType.TCP_ERROR, flow.error.msg.encode("ascii"))
 
+    # Thread safe
     def log(self, msg, lvl=Log.INFO):
+        self.log_buffer.add(lvl, msg)
+
+    # called by the LogBuffer thread. The frames are sent from the event loop, as
+    # send_message is not thread safe, see _send_logs
+    def _write_log(self, lvl, msg):
         Log.println(lvl, "mitmproxy", msg)
+        self.pending_logs.append((time.time(), lvl, msg))
 
         try:
-            self.send_message(time.time(), None, None, MsgType.LOG, (str(lvl) + ":" + msg).encode("ascii"))
-        except:
+            self.event_loop.call_soon_threadsafe(self._send_logs)
+        except RuntimeError:
+            # event loop closed
             pass
 
+    def _send_logs(self):
+        while self.pending_logs:
+            tstamp, lvl, msg = self.pending_logs.popleft()
+
+            try:
+                self.send_message(tstamp, None, None, MsgType.LOG,
+                    (str(lvl) + ":" + msg).encode("ascii", "backslashreplace"))
+            except:
+                pass
+
     def log_warn(self, msg):
         self.log(msg, lvl=Log.WARN)
 
@@ -298,8 +1184,10 @@ class PCAPdroid:
         lvl = str2lvl.get(entry.level, Log.DEBUG)
 
         if lvl >= Log.ERROR:
-            for line in traceback.format_stack():
-                self.log(line, lvl)
+            # a single multi-line entry, rate limited by the message
+            stack = "".join(traceback.format_stack())
+            self.log_buffer.add(lvl, entry.msg + "\n" + stack, key=entry.msg[:64])
+            return
         elif lvl == Log.INFO:
             # mitmproxy is very verbose in info messages, treat them as debug
             lvl = Log.DEBUG
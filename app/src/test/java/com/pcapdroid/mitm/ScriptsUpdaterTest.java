@@ -0,0 +1,218 @@
+/*
+ * This file is part of PCAPdroid.
+ *
+ * PCAPdroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PCAPdroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2023 - Emanuele Faranda
+ */
+
+package com.pcapdroid.mitm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/* Runs against a local HTTP server. android.util.Log is stubbed, see testOptions in build.gradle */
+public class ScriptsUpdaterTest {
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+    private static final byte[] SCRIPT_V1 = "console.log('v1');".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SCRIPT_V2 = "console.log('v2');".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private MemValidatorStore mValidators;
+    private ScriptsUpdater mUpdater;
+    private File mScriptsDir;
+
+    // the conditional headers of the last request
+    private volatile String mIfNoneMatch;
+    private volatile String mIfModifiedSince;
+
+    private static class MemValidatorStore implements ScriptsUpdater.ValidatorStore {
+        final Map<String, String[]> mValues = new HashMap<>();
+
+        @Override
+        public synchronized String[] get(String url) {
+            return mValues.get(url);
+        }
+
+        @Override
+        public synchronized void put(String url, String etag, String lastModified) {
+            mValues.put(url, new String[]{etag, lastModified});
+        }
+
+        @Override
+        public synchronized void remove(String url) {
+            mValues.remove(url);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mScriptsDir = mTmp.newFolder("scripts");
+        mValidators = new MemValidatorStore();
+        mUpdater = new ScriptsUpdater(mScriptsDir, mValidators);
+
+        // serves SCRIPT_V1, honoring the conditional requests
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/script.js", this::handleScript);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private void handleScript(HttpExchange exchange) throws IOException {
+        mIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        mIfModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        exchange.getResponseHeaders().add("ETag", ETAG);
+        exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+
+        if(ETAG.equals(mIfNoneMatch) || LAST_MODIFIED.equals(mIfModifiedSince)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, SCRIPT_V1.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(SCRIPT_V1);
+        }
+    }
+
+    private String scriptUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/script.js";
+    }
+
+    @Test
+    public void downloadsScript() throws IOException {
+        String url = scriptUrl();
+
+        assertEquals(ScriptsUpdater.Result.UPDATED, mUpdater.update(url));
+        assertArrayEquals(SCRIPT_V1, Files.readAllBytes(mUpdater.getScriptFile(url).toPath()));
+        assertArrayEquals(new String[]{ETAG, LAST_MODIFIED}, mValidators.get(url));
+        assertNull(mIfNoneMatch);
+        assertNull(mIfModifiedSince);
+    }
+
+    @Test
+    public void notModifiedWithEtag() throws IOException {
+        String url = scriptUrl();
+        assertEquals(ScriptsUpdater.Result.UPDATED, mUpdater.update(url));
+        long mtime = mUpdater.getScriptFile(url).lastModified();
+
+        assertEquals(ScriptsUpdater.Result.NOT_MODIFIED, mUpdater.update(url));
+        assertEquals(ETAG, mIfNoneMatch);
+        assertEquals(LAST_MODIFIED, mIfModifiedSince);
+        assertEquals(mtime, mUpdater.getScriptFile(url).lastModified());
+        assertArrayEquals(SCRIPT_V1, Files.readAllBytes(mUpdater.getScriptFile(url).toPath()));
+    }
+
+    @Test
+    public void notModifiedWithLastModified() throws IOException {
+        String url = scriptUrl();
+        Files.write(mUpdater.getScriptFile(url).toPath(), SCRIPT_V1);
+        mValidators.put(url, null, LAST_MODIFIED);
+
+        assertEquals(ScriptsUpdater.Result.NOT_MODIFIED, mUpdater.update(url));
+        assertNull(mIfNoneMatch);
+        assertEquals(LAST_MODIFIED, mIfModifiedSince);
+    }
+
+    @Test
+    public void validatorsIgnoredWithoutScript() {
+        String url = scriptUrl();
+        mValidators.put(url, ETAG, LAST_MODIFIED);
+
+        // the script was deleted, it must be downloaded again
+        assertEquals(ScriptsUpdater.Result.UPDATED, mUpdater.update(url));
+        assertNull(mIfNoneMatch);
+        assertNull(mIfModifiedSince);
+    }
+
+    @Test
+    public void interruptedDownloadKeepsScript() throws Exception {
+        // a server which closes the connection in the middle of the body
+        try(ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread thread = new Thread(() -> {
+                try(Socket sock = server.accept()) {
+                    readRequest(sock.getInputStream());
+
+                    OutputStream out = sock.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\n" +
+                            "ETag: \"v2\"\r\n" +
+                            "Transfer-Encoding: chunked\r\n" +
+                            "\r\n" +
+                            "1000\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(SCRIPT_V2);
+                    out.flush();
+                } catch (IOException ignored) {}
+            });
+            thread.start();
+
+            String url = "http://127.0.0.1:" + server.getLocalPort() + "/script.js";
+            File script = mUpdater.getScriptFile(url);
+            Files.write(script.toPath(), SCRIPT_V1);
+            mValidators.put(url, ETAG, LAST_MODIFIED);
+
+            assertEquals(ScriptsUpdater.Result.FAILED, mUpdater.update(url));
+            thread.join();
+
+            assertArrayEquals(SCRIPT_V1, Files.readAllBytes(script.toPath()));
+            assertArrayEquals(new String[]{ETAG, LAST_MODIFIED}, mValidators.get(url));
+            assertFalse(new File(script.getPath() + ".tmp").exists());
+        }
+    }
+
+    // reads the request head, up to the empty line
+    private static void readRequest(InputStream in) throws IOException {
+        int matched = 0;
+        byte[] end = {'\r', '\n', '\r', '\n'};
+
+        while(matched < end.length) {
+            int c = in.read();
+            if(c == -1)
+                return;
+            matched = (c == end[matched]) ? (matched + 1) : ((c == end[0]) ? 1 : 0);
+        }
+    }
+}
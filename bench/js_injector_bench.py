@@ -0,0 +1,123 @@
+#!/usr/bin/env python3
+#
+#  This file is part of PCAPdroid.
+#
+#  PCAPdroid is free software: you can redistribute it and/or modify
+#  it under the terms of the GNU General Public License as published by
+#  the Free Software Foundation, either version 3 of the License, or
+#  (at your option) any later version.
+#
+#  PCAPdroid is distributed in the hope that it will be useful,
+#  but WITHOUT ANY WARRANTY; without even the implied warranty of
+#  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+#  GNU General Public License for more details.
+#
+#  You should have received a copy of the GNU General Public License
+#  along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+#
+#  Copyright 2023 - Emanuele Faranda
+#
+
+# Compares the byte-level and the BeautifulSoup injection paths of the Js Injector
+# over a corpus of HTML pages (e.g. saved with "Save page as... > HTML only").
+#
+# Requires mitmproxy and beautifulsoup4 on the host:
+#   python3 bench/js_injector_bench.py path/to/corpus -n 20 -o results.json
+
+import io
+import os
+import sys
+import json
+import time
+import argparse
+import statistics
+import tracemalloc
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)), "..", "app", "src", "main", "python"))
+
+from mitmproxy import http
+from modules.js_userscript import JsUserscript
+from js_injector import get_charset, inject_scripts_bytes, inject_scripts_soup
+
+SAMPLE_SCRIPT = """
+// ==UserScript==
+// @name Benchmark
+// @require https://code.jquery.com/jquery-3.7.1.min.js
+// @match *://*/*
+// ==/UserScript==
+
+(function() {
+  console.log("injected");
+})();
+"""
+
+def inject_bytes(content, scripts):
+    charset = get_charset(http.Response.make(200, content, {"content-type": "text/html"}), content)
+    return inject_scripts_bytes(content, charset, scripts)
+
+def inject_soup(content, scripts):
+    return inject_scripts_soup(content, scripts)
+
+def measure(fn, content, scripts, iterations):
+    times = []
+    result = None
+
+    for _ in range(iterations):
+        start = time.perf_counter()
+        result = fn(content, scripts)
+        times.append((time.perf_counter() - start) * 1000)
+
+    tracemalloc.start()
+    fn(content, scripts)
+    _, peak = tracemalloc.get_traced_memory()
+    tracemalloc.stop()
+
+    return {
+        "ok": result is not None,
+        "median_ms": statistics.median(times),
+        "max_ms": max(times),
+        "peak_alloc_bytes": peak,
+    }
+
+def main():
+    parser = argparse.ArgumentParser(description="Js Injector injection benchmark")
+    parser.add_argument("corpus", help="directory containing the .html pages")
+    parser.add_argument("-n", "--iterations", type=int, default=10)
+    parser.add_argument("-o", "--output", help="save the results to this JSON file")
+    args = parser.parse_args()
+
+    scripts = [JsUserscript.parse(io.StringIO(SAMPLE_SCRIPT))]
+    results = []
+
+    fnames = sorted(f for f in os.listdir(args.corpus) if f.endswith((".html", ".htm")))
+    if not fnames:
+        print(f"No HTML pages found in {args.corpus}")
+        exit(1)
+
+    print(f"{'page':40} {'size':>10} {'bytes ms':>10} {'soup ms':>10} {'bytes peak':>12} {'soup peak':>12}")
+
+    for fname in fnames:
+        with open(os.path.join(args.corpus, fname), "rb") as f:
+            content = f.read()
+
+        res_bytes = measure(inject_bytes, content, scripts, args.iterations)
+        res_soup = measure(inject_soup, content, scripts, args.iterations)
+        results.append({"page": fname, "size": len(content), "bytes": res_bytes, "soup": res_soup})
+
+        print(f"{fname[:40]:40} {len(content):>10} "
+              f"{res_bytes['median_ms'] if res_bytes['ok'] else float('nan'):>10.2f} {res_soup['median_ms']:>10.2f} "
+              f"{res_bytes['peak_alloc_bytes']:>12} {res_soup['peak_alloc_bytes']:>12}")
+
+    fast = [r for r in results if r["bytes"]["ok"]]
+    print(f"\nByte-level path used for {len(fast)}/{len(results)} pages")
+    if fast:
+        speedup = statistics.median(r["soup"]["median_ms"] / max(r["bytes"]["median_ms"], 1e-6) for r in fast)
+        print(f"Median speedup: {speedup:.1f}x")
+
+    if args.output:
+        with open(args.output, "w") as f:
+            json.dump({"iterations": args.iterations, "pages": results}, f, indent=2)
+        print(f"Results saved to {args.output}")
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,875 @@
+#!/usr/bin/env python3
+#
+#  This file is part of PCAPdroid.
+#
+#  PCAPdroid is free software: you can redistribute it and/or modify
+#  it under the terms of the GNU General Public License as published by
+#  the Free Software Foundation, either version 3 of the License, or
+#  (at your option) any later version.
+#
+#  PCAPdroid is distributed in the hope that it will be useful,
+#  but WITHOUT ANY WARRANTY; without even the implied warranty of
+#  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+#  GNU General Public License for more details.
+#
+#  You should have received a copy of the GNU General Public License
+#  along with PCAPdroid.  If not, see <http://www.gnu.org/licenses/>.
+#
+#  Copyright 2023 - Emanuele Faranda
+#
+
+# Measures the throughput and the latency of the whole proxy pipeline on the host.
+# mitm.run is started as MitmService does, with one end of a socketpair as the PCAPdroid
+# fd and a stub for the Chaquopy java module. The load is generated by a separate process
+# (see loadgen), with local HTTP/1.1, HTTPS, HTTP/2, raw TCP and WebSocket servers and clients
+# connecting via the SOCKS5 proxy. Each workload is run directly (to compute the latency
+# added by the proxy), via the proxy, and via the proxy with the Js Injector.
+#
+# Requires the mitmproxy version of app/build.gradle and beautifulsoup4 on the host:
+#   python3 bench/proxy_bench.py -c 4 -n 500 -o results.json
+#   python3 bench/proxy_bench.py -o new.json --compare results.json
+
+import os
+import re
+import ssl
+import sys
+import json
+import math
+import time
+import types
+import socket
+import struct
+import asyncio
+import argparse
+import platform
+import resource
+import tempfile
+import threading
+import subprocess
+
+PYTHON_DIR = os.path.join(os.path.dirname(os.path.abspath(__file__)), "..", "app", "src", "main", "python")
+
+WORKLOADS = ["http1", "http1_html", "https1", "h2", "tcp", "websocket"]
+
+# see MitmAPI.FRAME_HEADER_SIZE and FRAME_LOG
+BINARY_HEADER = struct.Struct("<QBBHBBI")
+FRAME_LOG = 13
+
+# lets the export of a workload be flushed before measuring it
+SETTLE_TIME = 0.3
+
+BENCH_SCRIPT = """
+// ==UserScript==
+// @name Benchmark
+// @match *://*/*
+// ==/UserScript==
+
+(function() {
+  console.log("injected");
+})();
+"""
+
+# Output is written to the original stdout, as mitm.py redirects sys.stdout and print to PCAPdroid
+def report(msg=""):
+    sys.__stdout__.write(msg + "\n")
+    sys.__stdout__.flush()
+
+def percentile(values, p):
+    if not values:
+        return 0
+    # nearest rank
+    values = sorted(values)
+    return values[max(0, math.ceil(p / 100 * len(values)) - 1)]
+
+# ----------------------------------------------------------------------------
+# Load generator, runs in a separate process to not compete with the proxy for the GIL
+# ----------------------------------------------------------------------------
+
+def make_html(size):
+    para = b"<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.</p>\n"
+    head = b"<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>bench</title></head><body>\n"
+    tail = b"</body></html>\n"
+    count = max(0, size - len(head) - len(tail)) // len(para)
+    return head + para * count + tail
+
+def make_tls_contexts(tmpdir):
+    from cryptography import x509
+    from cryptography.x509.oid import NameOID
+    from cryptography.hazmat.primitives import hashes, serialization
+    from cryptography.hazmat.primitives.asymmetric import ec
+    import datetime
+
+    key = ec.generate_private_key(ec.SECP256R1())
+    name = x509.Name([x509.NameAttribute(NameOID.COMMON_NAME, "localhost")])
+    now = datetime.datetime.now(datetime.timezone.utc)
+    cert = x509.CertificateBuilder().subject_name(name).issuer_name(name) \
+        .public_key(key.public_key()).serial_number(x509.random_serial_number()) \
+        .not_valid_before(now - datetime.timedelta(days=1)).not_valid_after(now + datetime.timedelta(days=30)) \
+        .add_extension(x509.SubjectAlternativeName([x509.DNSName("localhost")]), critical=False) \
+        .sign(key, hashes.SHA256())
+
+    cert_path = os.path.join(tmpdir, "server.pem")
+    with open(cert_path, "wb") as f:
+        f.write(key.private_bytes(serialization.Encoding.PEM, serialization.PrivateFormat.PKCS8,
+            serialization.NoEncryption()))
+        f.write(cert.public_bytes(serialization.Encoding.PEM))
+
+    def server_ctx(alpn):
+        ctx = ssl.SSLContext(ssl.PROTOCOL_TLS_SERVER)
+        ctx.load_cert_chain(cert_path)
+        ctx.set_alpn_protocols(alpn)
+        return ctx
+
+    # the proxy certificate is not verified
+    def client_ctx(alpn):
+        ctx = ssl.SSLContext(ssl.PROTOCOL_TLS_CLIENT)
+        ctx.check_hostname = False
+        ctx.verify_mode = ssl.CERT_NONE
+        ctx.set_alpn_protocols(alpn)
+        return ctx
+
+    return server_ctx, client_ctx
+
+async def sock_recv_exact(loop, sock, size):
+    buf = b""
+    while len(buf) < size:
+        chunk = await loop.sock_recv(sock, size - len(buf))
+        if not chunk:
+            raise ConnectionError("SOCKS5 connection closed")
+        buf += chunk
+    return buf
+
+# Returns a socket connected to 127.0.0.1:port via the SOCKS5 proxy
+async def socks5_connect(proxy_port, port):
+    loop = asyncio.get_running_loop()
+    sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    sock.setblocking(False)
+
+    try:
+        await loop.sock_connect(sock, ("127.0.0.1", proxy_port))
+        await loop.sock_sendall(sock, b"\x05\x01\x00")
+        if await sock_recv_exact(loop, sock, 2) != b"\x05\x00":
+            raise ConnectionError("SOCKS5 authentication failed")
+
+        await loop.sock_sendall(sock, b"\x05\x01\x00\x01" + socket.inet_aton("127.0.0.1") + struct.pack("!H", port))
+        reply = await sock_recv_exact(loop, sock, 4)
+        if reply[1] != 0:
+            raise ConnectionError(f"SOCKS5 connect failed: {reply[1]}")
+
+        atyp = reply[3]
+        if atyp == 3:
+            addr_len = (await sock_recv_exact(loop, sock, 1))[0]
+        else:
+            addr_len = 16 if (atyp == 4) else 4
+        await sock_recv_exact(loop, sock, addr_len + 2)
+    except Exception:
+        sock.close()
+        raise
+
+    return sock
+
+async def open_stream(port, proxy_port, ssl_ctx=None):
+    server_hostname = "localhost" if ssl_ctx else None
+
+    if proxy_port:
+        sock = await socks5_connect(proxy_port, port)
+        return await asyncio.open_connection(sock=sock, ssl=ssl_ctx, server_hostname=server_hostname)
+    return await asyncio.open_connection("127.0.0.1", port, ssl=ssl_ctx, server_hostname=server_hostname)
+
+def close_writer(writer):
+    try:
+        writer.close()
+    except Exception:
+        pass
+
+# HTTP/1.1 keep-alive server, serving the same body to all the GET requests
+def http1_handler(body, content_type):
+    head = b"HTTP/1.1 200 OK\r\nContent-Type: %s\r\nContent-Length: %d\r\n\r\n" % (content_type, len(body))
+    response = head + body
+
+    async def handle(reader, writer):
+        try:
+            while True:
+                await reader.readuntil(b"\r\n\r\n")
+                writer.write(response)
+                await writer.drain()
+        except (asyncio.IncompleteReadError, ConnectionError, ssl.SSLError):
+            pass
+        finally:
+            close_writer(writer)
+
+    return handle
+
+CONTENT_LENGTH_RE = re.compile(rb"\r\ncontent-length:\s*(\d+)", re.IGNORECASE)
+
+class Http1Client:
+    REQUEST = b"GET /page HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n"
+
+    def __init__(self, reader, writer):
+        self.reader = reader
+        self.writer = writer
+
+    async def request(self):
+        self.writer.write(self.REQUEST)
+        await self.writer.drain()
+
+        head = await self.reader.readuntil(b"\r\n\r\n")
+        m = CONTENT_LENGTH_RE.search(head)
+        if not m:
+            raise ValueError("Missing content-length")
+        await self.reader.readexactly(int(m.group(1)))
+
+    async def close(self):
+        close_writer(self.writer)
+
+# HTTP/2 server, see https://python-hyper.org/projects/h2/en/stable/asyncio-example.html
+class H2ServerProtocol(asyncio.Protocol):
+    def __init__(self, body):
+        import h2.config
+        import h2.connection
+
+        self.body = body
+        self.conn = h2.connection.H2Connection(config=h2.config.H2Configuration(client_side=False))
+        self.pending = {}
+        self.transport = None
+
+    def connection_made(self, transport):
+        self.transport = transport
+        self.conn.initiate_connection()
+        self.transport.write(self.conn.data_to_send())
+
+    def data_received(self, data):
+        import h2.events
+        import h2.exceptions
+
+        try:
+            events = self.conn.receive_data(data)
+        except h2.exceptions.ProtocolError:
+            self.transport.close()
+            return
+
+        for event in events:
+            if isinstance(event, h2.events.RequestReceived):
+                self.conn.send_headers(event.stream_id, [
+                    (":status", "200"),
+                    ("content-type", "text/plain"),
+                    ("content-length", str(len(self.body))),
+                ], end_stream=not self.body)
+                if self.body:
+                    self.pending[event.stream_id] = self.body
+            elif isinstance(event, h2.events.StreamReset):
+                self.pending.pop(event.stream_id, None)
+            elif isinstance(event, h2.events.ConnectionTerminated):
+                self.transport.close()
+                return
+
+        self.flush()
+
+    # sends the pending bodies, within the flow control windows
+    def flush(self):
+        import h2.exceptions
+
+        for stream_id in list(self.pending):
+            data = self.pending[stream_id]
+
+            try:
+                while data:
+                    window = min(self.conn.local_flow_control_window(stream_id), self.conn.max_outbound_frame_size)
+                    if window <= 0:
+                        break
+                    chunk, data = data[:window], data[window:]
+                    self.conn.send_data(stream_id, chunk, end_stream=not data)
+            except h2.exceptions.StreamClosedError:
+                data = None
+
+            if data:
+                self.pending[stream_id] = data
+            else:
+                del self.pending[stream_id]
+
+        self.transport.write(self.conn.data_to_send())
+
+class H2Client:
+    def __init__(self, reader, writer):
+        import h2.config
+        import h2.connection
+
+        self.reader = reader
+        self.writer = writer
+        self.conn = h2.connection.H2Connection(config=h2.config.H2Configuration(client_side=True))
+        self.conn.initiate_connection()
+        self.writer.write(self.conn.data_to_send())
+
+    async def request(self):
+        import h2.events
+
+        stream_id = self.conn.get_next_available_stream_id()
+        self.conn.send_headers(stream_id, [
+            (":method", "GET"),
+            (":path", "/page"),
+            (":scheme", "https"),
+            (":authority", "localhost"),
+        ], end_stream=True)
+        self.writer.write(self.conn.data_to_send())
+        await self.writer.drain()
+
+        while True:
+            data = await self.reader.read(65536)
+            if not data:
+                raise ConnectionError("HTTP/2 connection closed")
+
+            done = False
+            for event in self.conn.receive_data(data):
+                if isinstance(event, h2.events.DataReceived):
+                    self.conn.acknowledge_received_data(event.flow_controlled_length, event.stream_id)
+                elif isinstance(event, h2.events.StreamEnded) and (event.stream_id == stream_id):
+                    done = True
+                elif isinstance(event, (h2.events.StreamReset, h2.events.ConnectionTerminated)):
+                    raise ConnectionError(f"HTTP/2 stream failed: {event}")
+
+            self.writer.write(self.conn.data_to_send())
+            if done:
+                return
+
+    async def close(self):
+        try:
+            self.conn.close_connection()
+            self.writer.write(self.conn.data_to_send())
+        except Exception:
+            pass
+        close_writer(self.writer)
+
+async def tcp_echo_handler(reader, writer):
+    try:
+        while True:
+            data = await reader.read(65536)
+            if not data:
+                break
+            writer.write(data)
+            await writer.drain()
+    except ConnectionError:
+        pass
+    finally:
+        close_writer(writer)
+
+class TcpClient:
+    def __init__(self, reader, writer, size):
+        self.reader = reader
+        self.writer = writer
+        # not HTTP nor TLS, to be handled as a raw TCP flow
+        self.message = b"\x00BENCH" + os.urandom(max(0, size - 6))
+
+    async def request(self):
+        self.writer.write(self.message)
+        await self.writer.drain()
+        await self.reader.readexactly(len(self.message))
+
+    async def close(self):
+        close_writer(self.writer)
+
+async def ws_echo_handler(reader, writer):
+    from wsproto import WSConnection, ConnectionType
+    from wsproto.events import Request, AcceptConnection, BytesMessage, TextMessage, CloseConnection, Ping
+
+    ws = WSConnection(ConnectionType.SERVER)
+    parts = []
+
+    try:
+        while True:
+            data = await reader.read(65536)
+            ws.receive_data(data or None)
+
+            for event in ws.events():
+                if isinstance(event, Request):
+                    writer.write(ws.send(AcceptConnection()))
+                elif isinstance(event, (BytesMessage, TextMessage)):
+                    parts.append(event.data)
+                    if event.message_finished:
+                        msg = b"".join(parts) if isinstance(event, BytesMessage) else "".join(parts)
+                        parts = []
+                        writer.write(ws.send(BytesMessage(data=msg) if isinstance(msg, bytes) else TextMessage(data=msg)))
+                elif isinstance(event, Ping):
+                    writer.write(ws.send(event.response()))
+                elif isinstance(event, CloseConnection):
+                    writer.write(ws.send(event.response()))
+                    await writer.drain()
+                    return
+
+            await writer.drain()
+            if not data:
+                return
+    except ConnectionError:
+        pass
+    finally:
+        close_writer(writer)
+
+class WsClient:
+    def __init__(self, reader, writer, size):
+        from wsproto import WSConnection, ConnectionType
+
+        self.reader = reader
+        self.writer = writer
+        self.ws = WSConnection(ConnectionType.CLIENT)
+        self.message = os.urandom(size)
+
+    # reads until an event of the given type is received
+    async def wait_event(self, event_type):
+        from wsproto.events import CloseConnection
+
+        while True:
+            for event in self.ws.events():
+                if isinstance(event, event_type):
+                    return event
+                if isinstance(event, CloseConnection):
+                    raise ConnectionError("WebSocket closed")
+
+            data = await self.reader.read(65536)
+            if not data:
+                raise ConnectionError("WebSocket connection closed")
+            self.ws.receive_data(data)
+
+    async def handshake(self):
+        from wsproto.events import Request, AcceptConnection
+
+        self.writer.write(self.ws.send(Request(host="localhost", target="/ws")))
+        await self.writer.drain()
+        await self.wait_event(AcceptConnection)
+
+    async def request(self):
+        from wsproto.events import BytesMessage
+
+        self.writer.write(self.ws.send(BytesMessage(data=self.message)))
+        await self.writer.drain()
+
+        received = 0
+        while received < len(self.message):
+            event = await self.wait_event(BytesMessage)
+            received += len(event.data)
+
+    async def close(self):
+        from wsproto.events import CloseConnection
+
+        try:
+            self.writer.write(self.ws.send(CloseConnection(code=1000)))
+            await self.writer.drain()
+        except Exception:
+            pass
+        close_writer(self.writer)
+
+async def start_servers(params, server_ctx):
+    loop = asyncio.get_running_loop()
+    body = os.urandom(params["size"])
+    servers = {}
+
+    async def listen(name, handler, ctx=None):
+        server = await asyncio.start_server(handler, "127.0.0.1", 0, ssl=ctx)
+        servers[name] = (server, server.sockets[0].getsockname()[1])
+
+    await listen("http1", http1_handler(body, b"application/octet-stream"))
+    await listen("http1_html", http1_handler(make_html(params["size"]), b"text/html; charset=utf-8"))
+    await listen("https1", http1_handler(body, b"application/octet-stream"), server_ctx(["http/1.1"]))
+    await listen("tcp", tcp_echo_handler)
+    await listen("websocket", ws_echo_handler)
+
+    server = await loop.create_server(lambda: H2ServerProtocol(body), "127.0.0.1", 0, ssl=server_ctx(["h2"]))
+    servers["h2"] = (server, server.sockets[0].getsockname()[1])
+    return servers
+
+async def open_client(workload, port, proxy_port, client_ctx, size):
+    if workload in ("http1", "http1_html"):
+        return Http1Client(*await open_stream(port, proxy_port))
+    elif workload == "https1":
+        return Http1Client(*await open_stream(port, proxy_port, client_ctx(["http/1.1"])))
+    elif workload == "h2":
+        reader, writer = await open_stream(port, proxy_port, client_ctx(["h2"]))
+        if writer.get_extra_info("ssl_object").selected_alpn_protocol() != "h2":
+            raise ConnectionError("HTTP/2 not negotiated")
+        return H2Client(reader, writer)
+    elif workload == "tcp":
+        return TcpClient(*await open_stream(port, proxy_port), size)
+    elif workload == "websocket":
+        client = WsClient(*await open_stream(port, proxy_port), size)
+        await client.handshake()
+        return client
+    raise ValueError(f"Unknown workload: {workload}")
+
+async def run_workload(workload, port, params, client_ctx):
+    connections = params["connections"]
+    barrier = asyncio.Barrier(connections + 1)
+    latencies = []
+
+    async def connection():
+        client = None
+        try:
+            client = await open_client(workload, port, params["proxy_port"], client_ctx, params["size"])
+
+            # the first request (e.g. certificate generation) is not measured
+            await client.request()
+            await barrier.wait()
+
+            for _ in range(params["requests"]):
+                start = time.perf_counter()
+                await client.request()
+                latencies.append(time.perf_counter() - start)
+        finally:
+            # on errors, do not wait for this connection. No effect once the barrier is passed
+            await barrier.abort()
+            if client:
+                await client.close()
+
+    tasks = [asyncio.create_task(connection()) for _ in range(connections)]
+
+    try:
+        await barrier.wait()
+    except asyncio.BrokenBarrierError:
+        pass
+
+    start = time.perf_counter()
+    results = await asyncio.gather(*tasks, return_exceptions=True)
+    duration = time.perf_counter() - start
+
+    errors = [r for r in results if isinstance(r, Exception) and not isinstance(r, asyncio.BrokenBarrierError)]
+    if errors and not latencies:
+        raise errors[0]
+
+    return {
+        "requests": len(latencies),
+        "errors": len(errors),
+        "duration_s": duration,
+        "req_s": len(latencies) / duration if duration else 0,
+        "p50_ms": percentile(latencies, 50) * 1000,
+        "p99_ms": percentile(latencies, 99) * 1000,
+        "max_ms": max(latencies, default=0) * 1000,
+    }
+
+def emit(event: dict):
+    sys.stdout.write(json.dumps(event) + "\n")
+    sys.stdout.flush()
+
+async def loadgen(params):
+    with tempfile.TemporaryDirectory() as tmpdir:
+        server_ctx, client_ctx = make_tls_contexts(tmpdir)
+        servers = await start_servers(params, server_ctx)
+
+        for workload in params["workloads"]:
+            emit({"event": "start", "workload": workload})
+
+            try:
+                result = await run_workload(workload, servers[workload][1], params, client_ctx)
+            except Exception as e:
+                result = {"error": f"{type(e).__name__}: {e}"}
+
+            await asyncio.sleep(SETTLE_TIME)
+            emit({"event": "end", "workload": workload, "result": result})
+
+        for server, _ in servers.values():
+            server.close()
+
+def loadgen_main(params):
+    asyncio.run(loadgen(params))
+
+# ----------------------------------------------------------------------------
+# Proxy, runs mitm.run in this process
+# ----------------------------------------------------------------------------
+
+def install_java_stub(verbose):
+    class Log:
+        VERBOSE = 2
+        DEBUG = 3
+        INFO = 4
+        WARN = 5
+        ERROR = 6
+
+        @staticmethod
+        def println(lvl, tag, msg):
+            if verbose:
+                sys.__stderr__.write(f"[{tag}] {msg}\n")
+            return 0
+
+    classes = {"android.util.Log": Log}
+
+    java = types.ModuleType("java")
+    java.jclass = lambda name: classes[name]
+    java.dynamic_proxy = lambda *interfaces: object
+    sys.modules["java"] = java
+
+# A stand-in for the MitmAPI.MitmConfig
+def make_config(args, port):
+    return types.SimpleNamespace(
+        proxyPort=port,
+        transparentMode=False,
+        sslInsecure=True,
+        dumpMasterSecrets=False,
+        shortPayload=False,
+        shortPayloadSize=0,
+        proxyAuth=None,
+        additionalOptions="",
+        binaryFraming=True,
+        backpressurePolicy=args.backpressure,
+        compression=args.compression,
+        streamBodies=args.stream_bodies,
+        jsInjectorEncoding=0,
+        tlsSessionCache=1,
+        minLogLevel=0,
+        connectionFrames=False,
+        memoryBudget=args.memory_budget,
+        controlChannel=False,
+    )
+
+# as MitmService.getMitmproxyArgs
+def make_mitm_args(conf):
+    args = "-q --set onboarding=false --listen-host 127.0.0.1 -p %u --mode socks5" % conf.proxyPort
+    if conf.sslInsecure:
+        args += " --ssl-insecure"
+    return args
+
+def get_free_port():
+    with socket.socket(socket.AF_INET, socket.SOCK_STREAM) as s:
+        s.bind(("127.0.0.1", 0))
+        return s.getsockname()[1]
+
+class BenchProxy:
+    def __init__(self, args, enabled_addons):
+        self.args = args
+        self.enabled_addons = enabled_addons
+        self.port = get_free_port()
+        self.export_bytes = 0
+        self.export_frames = 0
+        self.thread = None
+
+    def __enter__(self):
+        import mitm
+        self.mitm = mitm
+
+        # the proxy end is passed as the PCAPdroid fd, as in MitmService
+        self.export_sock, self.proxy_sock = socket.socketpair()
+        self.reader = threading.Thread(target=self.read_export, name="ExportReader", daemon=True)
+        self.reader.start()
+
+        conf = make_config(self.args, self.port)
+        self.thread = threading.Thread(target=mitm.run, name="mitm", daemon=True, args=(
+            self.proxy_sock.fileno(), self.enabled_addons, os.path.join(os.environ["HOME"], "addons"),
+            True, conf, make_mitm_args(conf)))
+        self.thread.start()
+        self.wait_listening()
+        return self
+
+    def wait_listening(self, timeout=60):
+        deadline = time.monotonic() + timeout
+
+        while time.monotonic() < deadline:
+            if not self.thread.is_alive():
+                raise RuntimeError("mitmproxy stopped, run with -v for the logs")
+            trace = self.mitm.startup_trace
+            if trace and ("total" in trace.phases):
+                return
+            time.sleep(0.05)
+
+        raise RuntimeError("mitmproxy did not start")
+
+    # NOTE: only the frames count is parsed, unless verbose, to keep the load on the proxy process low
+    def read_export(self):
+        verbose = self.args.verbose
+        buf = b""
+
+        while True:
+            try:
+                data = self.export_sock.recv(256 * 1024)
+            except OSError:
+                break
+            if not data:
+                break
+
+            self.export_bytes += len(data)
+            if not verbose:
+                continue
+
+            buf += data
+            while len(buf) >= BINARY_HEADER.size:
+                _, _, _, _, frame_type, _, length = BINARY_HEADER.unpack_from(buf)
+                if len(buf) < BINARY_HEADER.size + length:
+                    break
+
+                if frame_type == FRAME_LOG:
+                    payload = buf[BINARY_HEADER.size:BINARY_HEADER.size + length]
+                    sys.__stderr__.write("[mitm] " + payload.decode("ascii", "replace") + "\n")
+                self.export_frames += 1
+                buf = buf[BINARY_HEADER.size + length:]
+
+    def get_stats(self) -> dict:
+        return self.mitm.getStats()
+
+    def __exit__(self, *exc):
+        self.mitm.stop()
+        self.thread.join(30)
+        if self.thread.is_alive():
+            report("mitmproxy did not stop")
+
+        self.proxy_sock.close()
+        self.reader.join(5)
+        self.export_sock.close()
+
+def prepare_home(home):
+    os.makedirs(os.path.join(home, "addons"), exist_ok=True)
+
+    scripts_dir = os.path.join(home, "js_injector")
+    os.makedirs(scripts_dir, exist_ok=True)
+    with open(os.path.join(scripts_dir, "bench.js"), "w") as f:
+        f.write(BENCH_SCRIPT)
+
+def run_loadgen(args, proxy=None) -> dict:
+    params = {
+        "workloads": args.workloads,
+        "connections": args.connections,
+        "requests": args.requests,
+        "size": args.size,
+        "proxy_port": proxy.port if proxy else None,
+    }
+
+    proc = subprocess.Popen([sys.executable, os.path.abspath(__file__), "loadgen", json.dumps(params)],
+        stdout=subprocess.PIPE, text=True)
+    workloads = {}
+    mark = 0
+
+    for line in proc.stdout:
+        event = json.loads(line)
+
+        if event["event"] == "start":
+            mark = proxy.export_bytes if proxy else 0
+        elif event["event"] == "end":
+            result = event["result"]
+
+            if proxy and ("error" not in result):
+                result["export_bytes"] = proxy.export_bytes - mark
+                result["export_bytes_s"] = result["export_bytes"] / max(result["duration_s"], 1e-6)
+                result["rss"] = proxy.mitm.get_rss()
+
+            workloads[event["workload"]] = result
+            print_result(event["workload"], result)
+
+    if proc.wait() != 0:
+        raise RuntimeError(f"loadgen failed with code {proc.returncode}")
+    return workloads
+
+def print_header(name):
+    report(f"\n== {name}")
+    report(f"{'workload':12} {'req/s':>10} {'p50 ms':>9} {'p99 ms':>9} {'export MB/s':>12} {'rss MB':>8} {'errors':>7}")
+
+def print_result(workload, res):
+    if "error" in res:
+        report(f"{workload:12} {res['error']}")
+        return
+
+    report(f"{workload:12} {res['req_s']:>10.1f} {res['p50_ms']:>9.2f} {res['p99_ms']:>9.2f} "
+           f"{res.get('export_bytes_s', 0) / 1e6:>12.2f} {res.get('rss', 0) / 1e6:>8.1f} {res['errors']:>7}")
+
+# the latency added by the proxy, compared to the direct connection
+def add_proxy_latency(runs):
+    direct = runs["direct"]["workloads"]
+
+    for name, run in runs.items():
+        if name == "direct":
+            continue
+
+        for workload, res in run["workloads"].items():
+            base = direct.get(workload)
+            if base and ("error" not in base) and ("error" not in res):
+                res["added_p50_ms"] = res["p50_ms"] - base["p50_ms"]
+                res["added_p99_ms"] = res["p99_ms"] - base["p99_ms"]
+
+def print_summary(runs):
+    report("\n== Latency added by the proxy")
+    report(f"{'run':20} {'workload':12} {'p50 ms':>9} {'p99 ms':>9}")
+
+    for name, run in runs.items():
+        for workload, res in run["workloads"].items():
+            if "added_p50_ms" in res:
+                report(f"{name:20} {workload:12} {res['added_p50_ms']:>9.2f} {res['added_p99_ms']:>9.2f}")
+
+def compare(runs, path):
+    with open(path) as f:
+        prev_runs = json.load(f)["runs"]
+
+    def change(new, old):
+        return ((new - old) * 100 / old) if old else 0
+
+    report(f"\n== Compared to {path}")
+    report(f"{'run':20} {'workload':12} {'req/s':>9} {'p50':>9} {'p99':>9} {'export':>9}")
+
+    for name, run in runs.items():
+        for workload, res in run["workloads"].items():
+            prev = prev_runs.get(name, {}).get("workloads", {}).get(workload)
+            if not prev or ("error" in prev) or ("error" in res):
+                continue
+
+            report(f"{name:20} {workload:12} {change(res['req_s'], prev['req_s']):>+8.1f}% "
+                   f"{change(res['p50_ms'], prev['p50_ms']):>+8.1f}% {change(res['p99_ms'], prev['p99_ms']):>+8.1f}% "
+                   f"{change(res.get('export_bytes_s', 0), prev.get('export_bytes_s', 0)):>+8.1f}%")
+
+def main():
+    parser = argparse.ArgumentParser(description="Proxy pipeline throughput and latency benchmark")
+    parser.add_argument("-c", "--connections", type=int, default=4, help="concurrent connections per workload")
+    parser.add_argument("-n", "--requests", type=int, default=200, help="requests per connection")
+    parser.add_argument("-s", "--size", type=int, default=16 * 1024, help="response/message size in bytes")
+    parser.add_argument("-w", "--workloads", default=",".join(WORKLOADS), help="comma separated, among: " + ", ".join(WORKLOADS))
+    parser.add_argument("--compression", type=int, default=0, help="see MitmAPI.COMPRESSION_*")
+    parser.add_argument("--backpressure", type=int, default=0, help="see MitmAPI.BACKPRESSURE_*")
+    parser.add_argument("--stream-bodies", action="store_true", help="see MitmConfig.streamBodies")
+    parser.add_argument("--memory-budget", type=int, default=256 * 1024 * 1024, help="see MitmConfig.memoryBudget")
+    parser.add_argument("--home", help="HOME of the proxy (CA, userscripts), a temporary dir by default")
+    parser.add_argument("-o", "--output", help="save the results to this JSON file")
+    parser.add_argument("--compare", help="compare the results with a previously saved JSON file")
+    parser.add_argument("-v", "--verbose", action="store_true", help="show the mitmproxy logs")
+    args = parser.parse_args()
+
+    args.workloads = [w.strip() for w in args.workloads.split(",") if w.strip()]
+    for w in args.workloads:
+        if w not in WORKLOADS:
+            parser.error(f"unknown workload: {w}")
+
+    # before importing mitm, which reads it
+    home = args.home or tempfile.mkdtemp(prefix="pcapdroid-mitm-bench-")
+    os.environ["HOME"] = home
+    prepare_home(home)
+
+    sys.path.insert(0, PYTHON_DIR)
+    install_java_stub(args.verbose)
+
+    runs = {}
+
+    print_header("direct")
+    runs["direct"] = {"workloads": run_loadgen(args)}
+
+    for name, enabled_addons in (("proxy", []), ("proxy_js_injector", ["Js Injector"])):
+        print_header(name)
+
+        with BenchProxy(args, enabled_addons) as proxy:
+            runs[name] = {"workloads": run_loadgen(args, proxy)}
+            runs[name]["stats"] = proxy.get_stats()
+
+    add_proxy_latency(runs)
+    print_summary(runs)
+
+    if args.compare:
+        compare(runs, args.compare)
+
+    if args.output:
+        import mitmproxy.version
+
+        with open(args.output, "w") as f:
+            json.dump({
+                "timestamp": int(time.time()),
+                "python": platform.python_version(),
+                "mitmproxy": mitmproxy.version.VERSION,
+                "machine": platform.machine(),
+                "params": {k: v for k, v in vars(args).items() if k not in ("output", "compare", "verbose")},
+                "max_rss": resource.getrusage(resource.RUSAGE_SELF).ru_maxrss * 1024,
+                "runs": runs,
+            }, f, indent=2, default=str)
+        report(f"\nResults saved to {args.output}")
+
+if __name__ == "__main__":
+    if (len(sys.argv) == 3) and (sys.argv[1] == "loadgen"):
+        loadgen_main(json.loads(sys.argv[2]))
+    else:
+        main()